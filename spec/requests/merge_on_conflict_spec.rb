@@ -0,0 +1,54 @@
+require 'spec_helper'
+
+describe "MERGE_ON_CONFLICT" do
+
+  before :each do
+    get("#{SETTINGS_PATH}/sessionPersistPolicies")
+    @oldSessionPersistPoliciesValue = json['value']
+    enums = @oldSessionPersistPoliciesValue.split(',')
+    enums << 'MERGE_ON_CONFLICT'
+    post("#{SETTINGS_PATH}/sessionPersistPolicies", body: {value: enums.join(',')})
+  end
+
+  after :each do
+    post("#{SETTINGS_PATH}/sessionPersistPolicies", body: {value: @oldSessionPersistPoliciesValue})
+  end
+
+  it 'should keep changes to different attributes made by simultaneous requests' do
+    post(SESSION_PATH, body: {param1: '5', param2: '5'})
+
+    # This is not a perfect guarantee, but in general we're assuming
+    # that the requests will happen in the following order:
+    # - Post(param1=7) starts
+    # - Post(param2=6) starts
+    # - Post(param2=6) finishes
+    # - Post(param1=7) finishes, detects the conflict and merges
+    # - Get() returns param1=7 and param2=6
+    long_request = Thread.new do
+      post("#{SESSION_ATTRIBUTES_PATH}/param1", body: {value: '7', sleep: 2000})
+    end
+    sleep 1
+    post("#{SESSION_ATTRIBUTES_PATH}/param2", body: {value: '6'})
+
+    long_request.join
+
+    get(SESSION_PATH)
+    json['attributes']['param1'].should == '7'
+    json['attributes']['param2'].should == '6'
+  end
+
+  it 'should keep the latest value when simultaneous requests change the same attribute' do
+    post(SESSION_PATH, body: {param1: '5'})
+
+    long_request = Thread.new do
+      post("#{SESSION_ATTRIBUTES_PATH}/param1", body: {value: '7', sleep: 2000})
+    end
+    sleep 1
+    post("#{SESSION_ATTRIBUTES_PATH}/param1", body: {value: '6'})
+
+    long_request.join
+
+    get("#{SESSION_ATTRIBUTES_PATH}/param1")
+    json['value'].should == '7'
+  end
+end
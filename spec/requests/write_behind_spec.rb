@@ -0,0 +1,35 @@
+require 'spec_helper'
+
+describe "WRITE_BEHIND" do
+
+  before :each do
+    get("#{SETTINGS_PATH}/sessionPersistPolicies")
+    @oldSessionPersistPoliciesValue = json['value']
+    enums = @oldSessionPersistPoliciesValue.split(',')
+    enums << 'WRITE_BEHIND'
+    post("#{SETTINGS_PATH}/sessionPersistPolicies", body: {value: enums.join(',')})
+  end
+
+  after :each do
+    post("#{SETTINGS_PATH}/sessionPersistPolicies", body: {value: @oldSessionPersistPoliciesValue})
+  end
+
+  it 'should read the latest saved value immediately after a request' do
+    post(SESSION_PATH, body: {param1: '5'})
+    10.times do |i|
+      post("#{SESSION_ATTRIBUTES_PATH}/param1", body: {value: i.to_s})
+      get("#{SESSION_ATTRIBUTES_PATH}/param1")
+      json['value'].should == i.to_s
+    end
+  end
+
+  it 'should not bring back an invalidated session with an earlier queued save' do
+    post(SESSION_PATH, body: {param1: '5'})
+    created_session_id = json['sessionId']
+
+    delete(SESSION_PATH)
+
+    get(SESSION_PATH)
+    json['sessionId'].should_not == created_session_id
+  end
+end
@@ -0,0 +1,51 @@
+package com.orangefunction.tomcat.redissessions;
+
+import org.apache.catalina.core.StandardContext;
+
+import redis.clients.jedis.Jedis;
+
+
+/**
+ * A manager that isn't started and uses an {@link InMemoryJedis} for every
+ * command, for benchmarking the serialization and save decisions.
+ */
+class BenchmarkSessionManager extends RedisSessionManager {
+
+  final InMemoryJedis jedis = new InMemoryJedis();
+
+  BenchmarkSessionManager(String serializerClass) throws Exception {
+    // A context lets sessions notify their (nonexistent) listeners.
+    setContainer(new StandardContext());
+    serializer = (Serializer)Class.forName(serializerClass).newInstance();
+    serializer.setClassLoader(getClass().getClassLoader());
+    sessionStore = new PooledSessionStore(this);
+  }
+
+  @Override
+  protected Jedis acquireConnection(String key) {
+    return jedis;
+  }
+
+  @Override
+  protected void returnConnection(Jedis jedis, Boolean error) {
+    // Nothing to return.
+  }
+
+  /**
+   * Compresses serialized data of the given size or more, as the started
+   * manager would with compressionThreshold set.
+   */
+  void compressWith(int threshold) {
+    setCompressionThreshold(threshold);
+    compressor = threshold > 0 ? new PayloadCompressor(threshold, getCompressionLevel()) : null;
+  }
+
+  /**
+   * Stores the session and makes it the current request's session, as if
+   * the request had loaded it.
+   */
+  void store(RedisSession session) throws Exception {
+    currentContext().set(session.getId(), session, new SessionSerializationMetadata(), false);
+    saveInternal(jedis, session, true);
+  }
+}
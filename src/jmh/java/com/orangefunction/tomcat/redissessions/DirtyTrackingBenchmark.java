@@ -0,0 +1,83 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The cost of recording attribute changes during a request and of finding
+ * the attributes modified in place when the session is saved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DirtyTrackingBenchmark {
+
+  @Param({"FEW_SMALL", "MANY_SMALL"})
+  public SessionShape shape;
+
+  private BenchmarkSessionManager manager;
+  private RedisSession session;
+  private Map<String, Long> storedHashes;
+  private Map<String, Long> attributeHashes;
+  private int counter = 0;
+
+  @Setup
+  public void setUp() throws Exception {
+    manager = new BenchmarkSessionManager(JavaSerializer.class.getName());
+    session = shape.create(manager, "benchmark");
+
+    SessionSerializationMetadata stored = new SessionSerializationMetadata();
+    manager.hashAttributesInto(stored, session, manager.serializedAttributesFrom(session));
+    storedHashes = stored.getAttributeHashes();
+
+    // One attribute modified in place since the session was loaded.
+    String modified = storedHashes.keySet().iterator().next();
+    session.putLoadedAttribute(modified, "modified in place");
+    SessionSerializationMetadata current = new SessionSerializationMetadata();
+    manager.hashAttributesInto(current, session, manager.serializedAttributesFrom(session));
+    attributeHashes = current.getAttributeHashes();
+    session.resetDirtyTracking();
+  }
+
+  @Setup(Level.Invocation)
+  public void resetDirtyTracking() {
+    session.resetDirtyTracking();
+  }
+
+  /**
+   * Setting an attribute to an equal value, which isn't a change.
+   */
+  @Benchmark
+  public boolean setAttributeUnchanged() {
+    session.setAttribute("userName", "someone@example.com");
+    return session.isDirty();
+  }
+
+  @Benchmark
+  public boolean setAttributeChanged() {
+    session.setAttribute("visits", counter++);
+    return session.isDirty();
+  }
+
+  @Benchmark
+  public boolean trackAttributesModifiedInPlace() {
+    return manager.trackAttributesModifiedInPlace(session, storedHashes, attributeHashes);
+  }
+}
@@ -0,0 +1,48 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import redis.clients.jedis.Jedis;
+
+
+/**
+ * Stands in for a Redis connection in benchmarks, keeping the values of
+ * the string commands used by the STRING storage mode in memory, so that
+ * the manager's own costs are measured without a network round trip.
+ */
+class InMemoryJedis extends Jedis {
+
+  private final Map<String, byte[]> values = new HashMap<>();
+
+  InMemoryJedis() {
+    super("localhost");
+  }
+
+  @Override
+  public byte[] get(byte[] key) {
+    return values.get(new String(key, StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public String set(byte[] key, byte[] value) {
+    values.put(new String(key, StandardCharsets.UTF_8), value);
+    return "OK";
+  }
+
+  @Override
+  public String setex(byte[] key, int seconds, byte[] value) {
+    return set(key, value);
+  }
+
+  @Override
+  public Long expire(byte[] key, int seconds) {
+    return values.containsKey(new String(key, StandardCharsets.UTF_8)) ? 1L : 0L;
+  }
+
+  @Override
+  public Long del(String key) {
+    return values.remove(key) != null ? 1L : 0L;
+  }
+}
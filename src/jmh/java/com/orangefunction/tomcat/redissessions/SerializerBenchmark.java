@@ -0,0 +1,100 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The cost of turning sessions into bytes and back, and of hashing them
+ * for change detection, per serializer and session shape.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SerializerBenchmark {
+
+  @Param
+  public SessionShape shape;
+
+  @Param({"com.orangefunction.tomcat.redissessions.JavaSerializer", "com.orangefunction.tomcat.redissessions.CompactSerializer"})
+  public String serializer;
+
+  private BenchmarkSessionManager manager;
+  private RedisSession session;
+  private byte[] serializedSession;
+  private byte[] sessionData;
+
+  @Setup
+  public void setUp() throws Exception {
+    manager = new BenchmarkSessionManager(serializer);
+    session = shape.create(manager, "benchmark");
+
+    SessionSerializationMetadata metadata = new SessionSerializationMetadata();
+    metadata.setSessionAttributesHash(manager.serializer.attributesHashFrom(session));
+    serializedSession = manager.serializer.serializeFrom(session, metadata);
+
+    Map<String, byte[]> serializedAttributes = manager.serializedAttributesFrom(session);
+    manager.hashAttributesInto(metadata, session, serializedAttributes);
+    sessionData = manager.sessionDataFrom(session, metadata, serializedAttributes);
+  }
+
+  @Benchmark
+  public byte[] serializeFrom() throws Exception {
+    return manager.serializer.serializeFrom(session, new SessionSerializationMetadata());
+  }
+
+  @Benchmark
+  public RedisSession deserializeInto() throws Exception {
+    RedisSession deserialized = (RedisSession)manager.createEmptySession();
+    manager.serializer.deserializeInto(serializedSession, deserialized, new SessionSerializationMetadata());
+    return deserialized;
+  }
+
+  @Benchmark
+  public byte[] attributesHashFrom() throws Exception {
+    return manager.serializer.attributesHashFrom(session);
+  }
+
+  /**
+   * The serialization pass of every save: each attribute serialized and
+   * hashed on its own.
+   */
+  @Benchmark
+  public SessionSerializationMetadata hashAttributes() throws Exception {
+    SessionSerializationMetadata metadata = new SessionSerializationMetadata();
+    manager.hashAttributesInto(metadata, session, manager.serializedAttributesFrom(session));
+    return metadata;
+  }
+
+  /**
+   * What a save writes with STRING storage: the serialized attributes
+   * framed, and compressed if enabled.
+   */
+  @Benchmark
+  public byte[] sessionDataFrom() throws Exception {
+    SessionSerializationMetadata metadata = new SessionSerializationMetadata();
+    Map<String, byte[]> serializedAttributes = manager.serializedAttributesFrom(session);
+    manager.hashAttributesInto(metadata, session, serializedAttributes);
+    return manager.sessionDataFrom(session, metadata, serializedAttributes);
+  }
+
+  @Benchmark
+  public DeserializedSessionContainer sessionFromSerializedData() throws Exception {
+    return manager.sessionFromSerializedData("benchmark", sessionData);
+  }
+}
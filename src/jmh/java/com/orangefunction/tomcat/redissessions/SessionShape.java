@@ -0,0 +1,135 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * Representative session contents for benchmarks.
+ */
+public enum SessionShape {
+
+  /** A handful of small strings and numbers (e.g., a login.) */
+  FEW_SMALL {
+    @Override
+    void populate(RedisSession session, Random random) {
+      session.putLoadedAttribute("userId", 1234567L);
+      session.putLoadedAttribute("userName", "someone@example.com");
+      session.putLoadedAttribute("locale", "en_US");
+      session.putLoadedAttribute("loggedIn", Boolean.TRUE);
+      session.putLoadedAttribute("visits", 42);
+    }
+  },
+
+  /** Many small attributes. */
+  MANY_SMALL {
+    @Override
+    void populate(RedisSession session, Random random) {
+      for (int i = 0; i < 100; i++) {
+        session.putLoadedAttribute("string" + i, "value " + random.nextInt());
+        session.putLoadedAttribute("number" + i, random.nextLong());
+      }
+    }
+  },
+
+  /** A few large values (e.g., cached documents or uploaded data.) */
+  LARGE_VALUES {
+    @Override
+    void populate(RedisSession session, Random random) {
+      for (int i = 0; i < 4; i++) {
+        session.putLoadedAttribute("text" + i, randomText(random, 16 * 1024));
+      }
+      byte[] bytes = new byte[16 * 1024];
+      random.nextBytes(bytes);
+      session.putLoadedAttribute("bytes", bytes);
+    }
+  },
+
+  /** Large collections of small values. */
+  COLLECTIONS {
+    @Override
+    void populate(RedisSession session, Random random) {
+      List<String> list = new ArrayList<>();
+      Map<String, Integer> map = new HashMap<>();
+      for (int i = 0; i < 1000; i++) {
+        list.add("item " + random.nextInt(100000));
+        map.put("key" + i, random.nextInt());
+      }
+      session.putLoadedAttribute("list", list);
+      session.putLoadedAttribute("map", map);
+    }
+  },
+
+  /** Application objects with nested objects and collections. */
+  CUSTOM_OBJECTS {
+    @Override
+    void populate(RedisSession session, Random random) {
+      for (int i = 0; i < 10; i++) {
+        session.putLoadedAttribute("user" + i, new SampleUser(random));
+      }
+    }
+  };
+
+  abstract void populate(RedisSession session, Random random);
+
+  /**
+   * @return a valid, unchanged session holding this shape's attributes
+   */
+  RedisSession create(RedisSessionManager manager, String id) {
+    RedisSession session = (RedisSession)manager.createEmptySession();
+    session.setValid(true);
+    session.setId(id);
+    session.setCreationTime(System.currentTimeMillis());
+    session.setMaxInactiveInterval(1800);
+    populate(session, new Random(42));
+    session.resetDirtyTracking();
+    return session;
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      text.append((char)('a' + random.nextInt(26)));
+    }
+    return text.toString();
+  }
+
+  public static class SampleUser implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    private final String name;
+    private final Date lastLogin;
+    private final SampleAddress address;
+    private final List<String> roles = new ArrayList<>();
+
+    SampleUser(Random random) {
+      this.id = random.nextLong();
+      this.name = "user" + random.nextInt(100000);
+      this.lastLogin = new Date(random.nextInt() & Integer.MAX_VALUE);
+      this.address = new SampleAddress(random);
+      for (int i = 0; i < 5; i++) {
+        roles.add("role" + random.nextInt(20));
+      }
+    }
+  }
+
+  public static class SampleAddress implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String street;
+    private final String city;
+    private final int postalCode;
+
+    SampleAddress(Random random) {
+      this.street = random.nextInt(1000) + " Main Street";
+      this.city = "City " + random.nextInt(100);
+      this.postalCode = random.nextInt(100000);
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The manager's side of saving and loading sessions (the save decision,
+ * serialization, framing and compression) against an in-memory stand-in
+ * for Redis, so that the network doesn't hide it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SessionStoreBenchmark {
+
+  @Param
+  public SessionShape shape;
+
+  @Param({"com.orangefunction.tomcat.redissessions.JavaSerializer", "com.orangefunction.tomcat.redissessions.CompactSerializer"})
+  public String serializer;
+
+  @Param({"0", "1024"})
+  public int compressionThreshold;
+
+  private BenchmarkSessionManager manager;
+  private RedisSession session;
+  private int counter = 0;
+
+  @Setup
+  public void setUp() throws Exception {
+    manager = new BenchmarkSessionManager(serializer);
+    manager.compressWith(compressionThreshold);
+    session = shape.create(manager, "benchmark");
+    manager.store(session);
+  }
+
+  /**
+   * A request that didn't change the session: only the expiration is
+   * refreshed.
+   */
+  @Benchmark
+  public boolean saveUnchanged() throws Exception {
+    return manager.saveInternal(manager.jedis, session, false);
+  }
+
+  /**
+   * A request that changed one attribute.
+   */
+  @Benchmark
+  public boolean saveChanged() throws Exception {
+    session.putLoadedAttribute("counter", counter++);
+    session.trackAttributeChange("counter");
+    return manager.saveInternal(manager.jedis, session, false);
+  }
+
+  @Benchmark
+  public boolean saveForced() throws Exception {
+    return manager.saveInternal(manager.jedis, session, true);
+  }
+
+  /**
+   * A request's first lookup of its session, loading it from Redis.
+   */
+  @Benchmark
+  public Session findSession() throws Exception {
+    manager.currentContext().clear();
+    return manager.findSession("benchmark");
+  }
+}
@@ -0,0 +1,16 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.IOException;
+
+/**
+ * A {@link Serializer} that can also serialize each session attribute and
+ * the session's own fields independently, which is required for storage
+ * modes that do not write the session as a single opaque value.
+ */
+public interface AttributeSerializer extends Serializer {
+  byte[] serializeAttribute(Object value) throws IOException;
+  Object deserializeAttribute(byte[] data) throws IOException, ClassNotFoundException;
+
+  byte[] serializeSessionFields(RedisSession session) throws IOException;
+  void deserializeSessionFieldsInto(byte[] data, RedisSession session) throws IOException, ClassNotFoundException;
+}
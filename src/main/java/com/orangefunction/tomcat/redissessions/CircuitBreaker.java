@@ -0,0 +1,80 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Stops sending commands to Redis after consecutive failures to reach it,
+ * so requests fail over at once instead of each waiting for a connection
+ * or a timeout. Once the retry delay has passed, a single command is let
+ * through to try Redis again: the breaker closes if it succeeds, and stays
+ * open for another delay otherwise.
+ *
+ * Every command let through must be followed by {@link #recordSuccess()}
+ * or {@link #recordFailure()}.
+ */
+final class CircuitBreaker {
+
+  private final int failureThreshold;
+  private final long retryDelayMillis;
+
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  /** Time until which no command is let through; 0 while closed. */
+  private volatile long openUntil = 0;
+  private final AtomicBoolean trialInProgress = new AtomicBoolean();
+
+  CircuitBreaker(int failureThreshold, long retryDelayMillis) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.retryDelayMillis = retryDelayMillis;
+  }
+
+  /**
+   * @return true if a command may be sent to Redis
+   */
+  boolean allowRequest() {
+    long until = openUntil;
+    if (until == 0) {
+      return true;
+    }
+    if (System.currentTimeMillis() < until) {
+      return false;
+    }
+    return trialInProgress.compareAndSet(false, true);
+  }
+
+  boolean isOpen() {
+    return openUntil != 0;
+  }
+
+  /**
+   * @return true if this closed the breaker
+   */
+  boolean recordSuccess() {
+    consecutiveFailures.set(0);
+    if (openUntil == 0) {
+      return false;
+    }
+    openUntil = 0;
+    trialInProgress.set(false);
+    return true;
+  }
+
+  /**
+   * @return true if this opened the breaker
+   */
+  boolean recordFailure() {
+    if (openUntil != 0) {
+      // The trial failed.
+      openUntil = System.currentTimeMillis() + retryDelayMillis;
+      trialInProgress.set(false);
+      return false;
+    }
+    int failures = consecutiveFailures.incrementAndGet();
+    if (failures < failureThreshold) {
+      return false;
+    }
+    openUntil = System.currentTimeMillis() + retryDelayMillis;
+    return failures == failureThreshold;
+  }
+}
@@ -0,0 +1,381 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A serializer producing smaller payloads than {@link JavaSerializer}, in
+ * less time:
+ *
+ * <ul>
+ *   <li>strings, boxed primitives, byte arrays and dates are written as a
+ *       one byte type tag followed by their value;</li>
+ *   <li>other objects still use Java serialization, but the descriptor of a
+ *       registered class is written as a small number instead of the class
+ *       name, and the serialVersionUID and field list of every class as a
+ *       4 byte fingerprint.</li>
+ * </ul>
+ *
+ * Data written by {@link JavaSerializer} (which always starts with the Java
+ * serialization stream magic) is still read, so the serializer can be
+ * switched without losing existing sessions.
+ *
+ * Classes are registered by name; application classes can be added by
+ * subclassing this serializer and calling {@link #registerClass(String)} in
+ * the constructor. Every server must register the same classes in the same
+ * order, so new classes may only be appended. Class descriptors are taken
+ * from the local classes rather than from the stream, so all servers must
+ * also run the same version of every stored class: an object whose class
+ * changed its serialVersionUID or its serializable fields since it was
+ * stored fails to deserialize with an InvalidClassException, as it would
+ * with Java serialization, rather than being read into the wrong fields.
+ */
+public class CompactSerializer implements AttributeSerializer {
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte INTEGER = 2;
+  private static final byte LONG = 3;
+  private static final byte TRUE = 4;
+  private static final byte FALSE = 5;
+  private static final byte DOUBLE = 6;
+  private static final byte FLOAT = 7;
+  private static final byte SHORT = 8;
+  private static final byte BYTE = 9;
+  private static final byte CHARACTER = 10;
+  private static final byte BYTES = 11;
+  private static final byte DATE = 12;
+  /** Java serialization with class descriptors written as ids, unchecked. */
+  private static final byte OBJECT = 13;
+  /** Java serialization with class descriptors written as ids and fingerprints. */
+  private static final byte CHECKED_OBJECT = 14;
+
+  /** First byte of a session written by {@link #serializeFrom}. */
+  private static final byte SESSION_FORMAT = 1;
+
+  /** First byte of every Java serialization stream. */
+  private static final byte JAVA_STREAM_MAGIC = (byte)(ObjectStreamConstants.STREAM_MAGIC >>> 8);
+
+  private final JavaSerializer javaSerializer = new JavaSerializer();
+  private final List<String> registeredClassNames = new ArrayList<>();
+  private final Map<String, Integer> registeredClassIds = new HashMap<>();
+  private ClassLoader loader;
+
+  public CompactSerializer() {
+    registerClass("java.lang.Number");
+    registerClass("java.lang.Enum");
+    registerClass("java.lang.String");
+    registerClass("java.lang.Integer");
+    registerClass("java.lang.Long");
+    registerClass("java.lang.Boolean");
+    registerClass("java.lang.Double");
+    registerClass("java.lang.Float");
+    registerClass("java.lang.Short");
+    registerClass("java.lang.Byte");
+    registerClass("java.lang.Character");
+    registerClass("java.math.BigInteger");
+    registerClass("java.math.BigDecimal");
+    registerClass("java.util.Date");
+    registerClass("java.util.Locale");
+    registerClass("java.util.ArrayList");
+    registerClass("java.util.LinkedList");
+    registerClass("java.util.HashMap");
+    registerClass("java.util.LinkedHashMap");
+    registerClass("java.util.TreeMap");
+    registerClass("java.util.HashSet");
+    registerClass("java.util.LinkedHashSet");
+    registerClass("java.util.TreeSet");
+    registerClass("java.util.concurrent.ConcurrentHashMap");
+    registerClass("[Ljava.lang.Object;");
+    registerClass("[Ljava.lang.String;");
+  }
+
+  /**
+   * Registers a class so that its descriptor is written as a number. Array
+   * classes are registered by their binary name (e.g., "[Ljava.lang.String;".)
+   */
+  protected final void registerClass(String className) {
+    if (!registeredClassIds.containsKey(className)) {
+      registeredClassIds.put(className, registeredClassNames.size());
+      registeredClassNames.add(className);
+    }
+  }
+
+  @Override
+  public void setClassLoader(ClassLoader loader) {
+    this.loader = loader;
+    javaSerializer.setClassLoader(loader);
+  }
+
+  @Override
+  public byte[] attributesHashFrom(RedisSession session) throws IOException {
+    return javaSerializer.attributesHashFrom(session);
+  }
+
+  @Override
+  public byte[] serializeFrom(RedisSession session, SessionSerializationMetadata metadata) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(bos);
+
+    dos.writeByte(SESSION_FORMAT);
+    writeBytes(dos, metadata.getSessionAttributesHash());
+    session.writeFieldsData(dos);
+    dos.writeUTF(session.getIdInternal());
+
+    List<String> names = new ArrayList<>();
+    for (Enumeration<String> enumerator = session.getAttributeNames(); enumerator.hasMoreElements();) {
+      names.add(enumerator.nextElement());
+    }
+    dos.writeInt(names.size());
+    for (String name : names) {
+      dos.writeUTF(name);
+      writeBytes(dos, serializeAttribute(session.getAttribute(name)));
+    }
+    dos.flush();
+
+    return bos.toByteArray();
+  }
+
+  @Override
+  public void deserializeInto(byte[] data, RedisSession session, SessionSerializationMetadata metadata) throws IOException, ClassNotFoundException {
+    if (data.length > 0 && data[0] == JAVA_STREAM_MAGIC) {
+      javaSerializer.deserializeInto(data, session, metadata);
+      return;
+    }
+
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+    byte format = dis.readByte();
+    if (format != SESSION_FORMAT) {
+      throw new IOException("Unknown session format " + format);
+    }
+
+    metadata.setSessionAttributesHash(readBytes(dis));
+    session.readFieldsData(dis);
+    session.setId(dis.readUTF());
+
+    int attributeCount = dis.readInt();
+    for (int i = 0; i < attributeCount; i++) {
+      String name = dis.readUTF();
+      session.putLoadedAttribute(name, deserializeAttribute(readBytes(dis)));
+    }
+  }
+
+  @Override
+  public byte[] serializeAttribute(Object value) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(bos);
+
+    if (value == null) {
+      dos.writeByte(NULL);
+    } else if (value instanceof String) {
+      dos.writeByte(STRING);
+      writeBytes(dos, ((String)value).getBytes(StandardCharsets.UTF_8));
+    } else if (value instanceof Integer) {
+      dos.writeByte(INTEGER);
+      dos.writeInt((Integer)value);
+    } else if (value instanceof Long) {
+      dos.writeByte(LONG);
+      dos.writeLong((Long)value);
+    } else if (value instanceof Boolean) {
+      dos.writeByte((Boolean)value ? TRUE : FALSE);
+    } else if (value instanceof Double) {
+      dos.writeByte(DOUBLE);
+      dos.writeDouble((Double)value);
+    } else if (value instanceof Float) {
+      dos.writeByte(FLOAT);
+      dos.writeFloat((Float)value);
+    } else if (value instanceof Short) {
+      dos.writeByte(SHORT);
+      dos.writeShort((Short)value);
+    } else if (value instanceof Byte) {
+      dos.writeByte(BYTE);
+      dos.writeByte((Byte)value);
+    } else if (value instanceof Character) {
+      dos.writeByte(CHARACTER);
+      dos.writeChar((Character)value);
+    } else if (value instanceof byte[]) {
+      dos.writeByte(BYTES);
+      writeBytes(dos, (byte[])value);
+    } else if (value.getClass() == Date.class) {
+      dos.writeByte(DATE);
+      dos.writeLong(((Date)value).getTime());
+    } else {
+      dos.writeByte(CHECKED_OBJECT);
+      dos.flush();
+      try (ObjectOutputStream oos = new RegisteredClassOutputStream(bos)) {
+        oos.writeObject(value);
+      }
+      return bos.toByteArray();
+    }
+
+    dos.flush();
+    return bos.toByteArray();
+  }
+
+  @Override
+  public Object deserializeAttribute(byte[] data) throws IOException, ClassNotFoundException {
+    if (data.length > 0 && data[0] == JAVA_STREAM_MAGIC) {
+      return javaSerializer.deserializeAttribute(data);
+    }
+
+    ByteArrayInputStream bis = new ByteArrayInputStream(data);
+    DataInputStream dis = new DataInputStream(bis);
+    byte tag = dis.readByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case STRING:
+        return new String(readBytes(dis), StandardCharsets.UTF_8);
+      case INTEGER:
+        return dis.readInt();
+      case LONG:
+        return dis.readLong();
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      case DOUBLE:
+        return dis.readDouble();
+      case FLOAT:
+        return dis.readFloat();
+      case SHORT:
+        return dis.readShort();
+      case BYTE:
+        return dis.readByte();
+      case CHARACTER:
+        return dis.readChar();
+      case BYTES:
+        return readBytes(dis);
+      case DATE:
+        return new Date(dis.readLong());
+      case OBJECT:
+      case CHECKED_OBJECT:
+        try (ObjectInputStream ois = new RegisteredClassInputStream(bis, tag == CHECKED_OBJECT)) {
+          return ois.readObject();
+        }
+      default:
+        throw new IOException("Unknown attribute type " + tag);
+    }
+  }
+
+  @Override
+  public byte[] serializeSessionFields(RedisSession session) throws IOException {
+    return javaSerializer.serializeSessionFields(session);
+  }
+
+  @Override
+  public void deserializeSessionFieldsInto(byte[] data, RedisSession session) throws IOException, ClassNotFoundException {
+    javaSerializer.deserializeSessionFieldsInto(data, session);
+  }
+
+  private Class<?> loadClass(String name) throws ClassNotFoundException {
+    ClassLoader classLoader = loader != null ? loader : Thread.currentThread().getContextClassLoader();
+    return Class.forName(name, false, classLoader);
+  }
+
+  private static void writeBytes(DataOutputStream dos, byte[] bytes) throws IOException {
+    dos.writeInt(bytes.length);
+    dos.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream dis) throws IOException {
+    byte[] bytes = new byte[dis.readInt()];
+    dis.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * Hashes what the serialized form of the class's objects depends on: its
+   * serialVersionUID and its serializable fields, in the order they are
+   * written.
+   */
+  private static int layoutFingerprintOf(ObjectStreamClass desc) throws IOException {
+    ScratchBuffer buffer = ScratchBuffer.acquire();
+    try {
+      DataOutputStream dos = buffer.dataOutput();
+      dos.writeLong(desc.getSerialVersionUID());
+      for (ObjectStreamField field : desc.getFields()) {
+        dos.writeUTF(field.getName());
+        dos.writeChar(field.getTypeCode());
+        if (!field.isPrimitive()) {
+          dos.writeUTF(field.getTypeString());
+        }
+      }
+      return (int)XXHash64.hash(buffer.array(), 0, buffer.size(), 0);
+    } finally {
+      buffer.release();
+    }
+  }
+
+  /**
+   * Writes the descriptor of a registered class as its id + 1, and of any
+   * other class as 0 followed by the class name, then the fingerprint of
+   * the class's layout.
+   */
+  private class RegisteredClassOutputStream extends ObjectOutputStream {
+    RegisteredClassOutputStream(OutputStream out) throws IOException {
+      super(out);
+    }
+
+    @Override
+    protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+      Integer id = registeredClassIds.get(desc.getName());
+      if (id != null) {
+        writeInt(id + 1);
+      } else {
+        writeInt(0);
+        writeUTF(desc.getName());
+      }
+      writeInt(layoutFingerprintOf(desc));
+    }
+  }
+
+  private class RegisteredClassInputStream extends ObjectInputStream {
+    /** Whether each descriptor is followed by the class's layout fingerprint. */
+    private final boolean checked;
+
+    RegisteredClassInputStream(InputStream in, boolean checked) throws IOException {
+      super(in);
+      this.checked = checked;
+    }
+
+    @Override
+    protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+      int id = readInt();
+      String name;
+      if (id == 0) {
+        name = readUTF();
+      } else if (id <= registeredClassNames.size()) {
+        name = registeredClassNames.get(id - 1);
+      } else {
+        throw new InvalidClassException("Unknown registered class id " + (id - 1));
+      }
+
+      ObjectStreamClass desc = ObjectStreamClass.lookup(loadClass(name));
+      if (desc == null) {
+        throw new NotSerializableException(name);
+      }
+      if (checked) {
+        int storedFingerprint = readInt();
+        if (storedFingerprint != layoutFingerprintOf(desc)) {
+          throw new InvalidClassException(name, "local class incompatible: its serialVersionUID or serializable fields changed since the object was stored");
+        }
+      }
+      return desc;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      try {
+        return loadClass(desc.getName());
+      } catch (ClassNotFoundException e) {
+        return super.resolveClass(desc);
+      }
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.orangefunction.tomcat.redissessions;
+
+import redis.clients.jedis.Jedis;
+
+
+/**
+ * A pooled connection kept by the thread processing a request, so the
+ * request borrows a connection from the pool at most once instead of for
+ * every command it sends.
+ *
+ * The {@link RedisSessionHandlerValve} starts the lease before the request
+ * is processed, the first command takes the connection, and the valve
+ * returns it to the pool once the session has been saved. A connection
+ * that broke is returned right away, and the next command takes another.
+ */
+final class ConnectionLease {
+
+  private Jedis connection;
+
+  /**
+   * @return the leased connection, or null if none was taken yet
+   */
+  Jedis connection() {
+    return connection;
+  }
+
+  void take(Jedis connection) {
+    this.connection = connection;
+  }
+
+  boolean holds(Jedis jedis) {
+    return jedis != null && jedis == connection;
+  }
+
+  /**
+   * @return the leased connection (null if none was taken), which the
+   *         caller returns to the pool
+   */
+  Jedis release() {
+    Jedis released = connection;
+    connection = null;
+    return released;
+  }
+}
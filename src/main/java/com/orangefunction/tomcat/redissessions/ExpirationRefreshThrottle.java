@@ -0,0 +1,46 @@
+package com.orangefunction.tomcat.redissessions;
+
+
+/**
+ * Records when this server last set the expiration of each session (by
+ * saving the session or refreshing its expiration), so an unchanged session
+ * used by many requests in a row gets its expiration refreshed once per
+ * interval instead of on every request.
+ *
+ * Skipping a refresh lets the session expire up to one interval earlier
+ * than it otherwise would, so the interval should be a small fraction of
+ * the session timeout.
+ */
+class ExpirationRefreshThrottle {
+
+  /** The recently used session ids whose expiration this server set. */
+  private final RecentSessionIds refreshes;
+
+  ExpirationRefreshThrottle(long intervalMillis) {
+    this.refreshes = new RecentSessionIds(intervalMillis);
+  }
+
+  void recordRefresh(String id) {
+    refreshes.record(id);
+  }
+
+  /**
+   * @return true if this server set the session's expiration less than an
+   *         interval ago
+   */
+  boolean isRecentlyRefreshed(String id) {
+    return refreshes.isRecent(id);
+  }
+
+  void forget(String id) {
+    refreshes.forget(id);
+  }
+
+  /**
+   * Forgets the refreshes older than an interval, which no longer spare
+   * any.
+   */
+  void expireRefreshes() {
+    refreshes.expire();
+  }
+}
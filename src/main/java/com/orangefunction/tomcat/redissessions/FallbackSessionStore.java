@@ -0,0 +1,412 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+
+/**
+ * Keeps sessions available while Redis isn't (e.g., during a Sentinel
+ * failover.) Commands go through a circuit breaker: once Redis can't be
+ * reached, sessions are written to and read from a bounded in-memory store
+ * instead, without waiting on Redis, until the breaker lets a command
+ * through again and it succeeds.
+ *
+ * The sessions written meanwhile are read locally until
+ * {@link #reconcile()} has written them back to Redis. Sessions only
+ * stored in Redis can't be read while it's unavailable, and once the
+ * local store is full the least recently used sessions in it are dropped.
+ */
+final class FallbackSessionStore implements SessionStore {
+
+  /**
+   * A write not yet applied to Redis. Writing it back to Redis and the
+   * commands of requests about its key synchronize on it, so it can't
+   * overwrite a later write that reached Redis directly.
+   */
+  private static final class LocalWrite {
+    final byte[] key;
+    /** The serialized session, or null for an expiration refresh or a removal. */
+    final byte[] data;
+    final int expiration;
+    final boolean removal;
+    /**
+     * Whether the session was created while Redis was unavailable, so it
+     * must not replace a session of the same id found in Redis.
+     */
+    final boolean creation;
+    final long writtenAt = System.currentTimeMillis();
+
+    LocalWrite(byte[] key, byte[] data, int expiration, boolean removal, boolean creation) {
+      this.key = key;
+      this.data = data;
+      this.expiration = expiration;
+      this.removal = removal;
+      this.creation = creation;
+    }
+
+    boolean isExpirationOnly() {
+      return data == null && !removal;
+    }
+
+    boolean isExpired(long now) {
+      return expiration > 0 && now - writtenAt >= expiration * 1000L;
+    }
+
+    /**
+     * @return the expiration left, rounded up to a second
+     */
+    int remainingExpiration(long now) {
+      if (expiration <= 0) {
+        return expiration;
+      }
+      return (int)Math.max(1, (writtenAt + expiration * 1000L - now + 999) / 1000);
+    }
+  }
+
+  private final Log log = LogFactory.getLog(FallbackSessionStore.class);
+
+  private final SessionStore store;
+  private final CircuitBreaker breaker;
+  private final SessionStoreMetrics metrics;
+  private final LinkedHashMap<String, LocalWrite> localWrites;
+
+  FallbackSessionStore(SessionStore store, CircuitBreaker breaker, final int maxEntries, final SessionStoreMetrics metrics) {
+    this.store = store;
+    this.breaker = breaker;
+    this.metrics = metrics;
+    this.localWrites = new LinkedHashMap<String, LocalWrite>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, LocalWrite> eldest) {
+        if (size() <= maxEntries) {
+          return false;
+        }
+        log.debug("Fallback session store is full; dropping " + eldest.getKey());
+        metrics.fallbackWritesLost.incrementAndGet();
+        return true;
+      }
+    };
+  }
+
+  @Override
+  public byte[] get(byte[] key) throws IOException {
+    LocalWrite write = localWrite(key);
+    if (write != null && !write.isExpirationOnly()) {
+      // Redis doesn't have the latest write of the session yet.
+      metrics.fallbackCommands.incrementAndGet();
+      return write.removal ? null : write.data;
+    }
+
+    if (breaker.allowRequest()) {
+      try {
+        byte[] data = store.get(key);
+        succeeded();
+        return data;
+      } catch (IOException | RuntimeException e) {
+        if (!isUnavailable(e)) {
+          succeeded();
+          throw e;
+        }
+        failed(e);
+      }
+    }
+    metrics.fallbackCommands.incrementAndGet();
+    return null;
+  }
+
+  @Override
+  public void set(byte[] key, byte[] data, int expiration) throws IOException {
+    if (breaker.allowRequest()) {
+      try {
+        LocalWrite pending = localWrite(key);
+        if (pending == null) {
+          store.set(key, data, expiration);
+        } else {
+          synchronized (pending) {
+            store.set(key, data, expiration);
+            forget(key);
+          }
+        }
+        succeeded();
+        forget(key);
+        return;
+      } catch (IOException | RuntimeException e) {
+        if (!isUnavailable(e)) {
+          succeeded();
+          throw e;
+        }
+        failed(e);
+      }
+    }
+    writeLocally(new LocalWrite(key, data, expiration, false, false));
+  }
+
+  @Override
+  public boolean setIfAbsent(byte[] key, byte[] data, int expiration) throws IOException {
+    LocalWrite write = localWrite(key);
+    if (write != null && write.data != null) {
+      return false;
+    }
+
+    if (breaker.allowRequest()) {
+      try {
+        boolean written;
+        if (write == null) {
+          written = store.setIfAbsent(key, data, expiration);
+        } else {
+          synchronized (write) {
+            written = store.setIfAbsent(key, data, expiration);
+          }
+        }
+        succeeded();
+        return written;
+      } catch (IOException | RuntimeException e) {
+        if (!isUnavailable(e)) {
+          succeeded();
+          throw e;
+        }
+        failed(e);
+      }
+    }
+    // Whether Redis has the key can't be checked, but a generated id is
+    // all but certainly new. The session is only written back if Redis
+    // doesn't have the key either.
+    writeLocally(new LocalWrite(key, data, expiration, false, true));
+    return true;
+  }
+
+  @Override
+  public void expire(byte[] key, int expiration) throws IOException {
+    if (breaker.allowRequest()) {
+      try {
+        store.expire(key, expiration);
+        succeeded();
+        return;
+      } catch (IOException | RuntimeException e) {
+        if (!isUnavailable(e)) {
+          succeeded();
+          throw e;
+        }
+        failed(e);
+      }
+    }
+
+    synchronized (localWrites) {
+      LocalWrite write = localWrites.get(asString(key));
+      if (write != null && write.removal) {
+        return;
+      }
+      // Refreshing a local write means writing it again.
+      writeLocally(new LocalWrite(key, write == null ? null : write.data, expiration, false, false));
+    }
+  }
+
+  @Override
+  public void del(byte[] key) throws IOException {
+    if (breaker.allowRequest()) {
+      try {
+        LocalWrite pending = localWrite(key);
+        if (pending == null) {
+          store.del(key);
+        } else {
+          synchronized (pending) {
+            store.del(key);
+            forget(key);
+          }
+        }
+        succeeded();
+        forget(key);
+        return;
+      } catch (IOException | RuntimeException e) {
+        if (!isUnavailable(e)) {
+          succeeded();
+          throw e;
+        }
+        failed(e);
+      }
+    }
+    writeLocally(new LocalWrite(key, null, 0, true, false));
+  }
+
+  /**
+   * Writes the sessions written locally back to Redis (unless they
+   * expired in the meantime), stopping if Redis is still unavailable.
+   * Each session written back overwrites the one in Redis, except for the
+   * sessions created locally, which are dropped if Redis has a session of
+   * the same id.
+   */
+  void reconcile() {
+    List<LocalWrite> writes;
+    synchronized (localWrites) {
+      if (localWrites.isEmpty()) {
+        return;
+      }
+      writes = new ArrayList<>(localWrites.values());
+    }
+
+    int reconciled = 0;
+    for (LocalWrite write : writes) {
+      long now = System.currentTimeMillis();
+      if (write.isExpired(now)) {
+        forget(write);
+        continue;
+      }
+
+      synchronized (write) {
+        if (!isCurrent(write)) {
+          // Replaced by a later write, or already written by a request.
+          continue;
+        }
+        if (!breaker.allowRequest()) {
+          return;
+        }
+
+        try {
+          boolean written = true;
+          if (write.removal) {
+            store.del(write.key);
+          } else if (write.creation) {
+            written = store.setIfAbsent(write.key, write.data, write.remainingExpiration(now));
+          } else if (write.data != null) {
+            store.set(write.key, write.data, write.remainingExpiration(now));
+          } else {
+            store.expire(write.key, write.remainingExpiration(now));
+          }
+          succeeded();
+          if (written) {
+            reconciled++;
+          } else {
+            log.warn("Session " + asString(write.key) + " created while Redis was unavailable already exists in Redis; keeping the one in Redis");
+            metrics.fallbackWritesLost.incrementAndGet();
+          }
+        } catch (IOException | RuntimeException e) {
+          if (isUnavailable(e)) {
+            failed(e);
+            return;
+          }
+          succeeded();
+          log.warn("Unable to write session " + asString(write.key) + " back to Redis; its changes are lost", e);
+          metrics.fallbackWritesLost.incrementAndGet();
+        }
+        forget(write);
+      }
+    }
+
+    if (reconciled > 0) {
+      log.info("Wrote " + reconciled + " sessions saved while Redis was unavailable back to Redis");
+    }
+  }
+
+  int localWriteCount() {
+    synchronized (localWrites) {
+      return localWrites.size();
+    }
+  }
+
+  @Override
+  public void close() {
+    int pending = localWriteCount();
+    if (pending > 0) {
+      log.warn(pending + " sessions saved while Redis was unavailable were never written back to Redis");
+    }
+    store.close();
+  }
+
+  /**
+   * @return true if the error means Redis couldn't be reached, rather than
+   *         an error of the command itself
+   */
+  private static boolean isUnavailable(Exception e) {
+    if (e instanceof JedisConnectionException) {
+      return true;
+    }
+    return e instanceof IOException && !(e.getCause() instanceof JedisDataException);
+  }
+
+  private void succeeded() {
+    if (breaker.recordSuccess()) {
+      log.info("Redis is available again; " + localWriteCount() + " sessions saved meanwhile will be written back");
+    }
+  }
+
+  private void failed(Exception e) {
+    if (breaker.recordFailure()) {
+      log.error("Redis is unavailable; keeping sessions in memory until it's back: " + e.getMessage());
+      metrics.circuitBreakerOpenings.incrementAndGet();
+    } else if (log.isDebugEnabled()) {
+      log.debug("Redis is unavailable: " + e.getMessage());
+    }
+  }
+
+  private LocalWrite localWrite(byte[] key) {
+    synchronized (localWrites) {
+      if (localWrites.isEmpty()) {
+        return null;
+      }
+      String localKey = asString(key);
+      LocalWrite write = localWrites.get(localKey);
+      if (write != null && write.isExpired(System.currentTimeMillis())) {
+        localWrites.remove(localKey);
+        return null;
+      }
+      return write;
+    }
+  }
+
+  private void writeLocally(LocalWrite write) {
+    metrics.fallbackCommands.incrementAndGet();
+    synchronized (localWrites) {
+      String localKey = asString(write.key);
+      LocalWrite previous = localWrites.get(localKey);
+      if (previous != null && previous.creation && !write.creation) {
+        if (write.removal) {
+          // Redis never had the session, but may have another one of the
+          // same id.
+          localWrites.remove(localKey);
+          return;
+        }
+        write = new LocalWrite(write.key, write.data, write.expiration, false, true);
+      }
+      localWrites.put(localKey, write);
+    }
+  }
+
+  private void forget(byte[] key) {
+    synchronized (localWrites) {
+      if (!localWrites.isEmpty()) {
+        localWrites.remove(asString(key));
+      }
+    }
+  }
+
+  private boolean isCurrent(LocalWrite write) {
+    synchronized (localWrites) {
+      return localWrites.get(asString(write.key)) == write;
+    }
+  }
+
+  /**
+   * Forgets a write written back to Redis, unless it was replaced meanwhile.
+   */
+  private void forget(LocalWrite write) {
+    synchronized (localWrites) {
+      String localKey = asString(write.key);
+      if (localWrites.get(localKey) == write) {
+        localWrites.remove(localKey);
+      }
+    }
+  }
+
+  private static String asString(byte[] key) {
+    return new String(key, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,86 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * String storage format for serializers implementing
+ * {@link AttributeSerializer}: after the {@link SessionDataHeader}, the
+ * session's fields, its attributes hash and then every attribute as an
+ * independently serialized, length-prefixed value.
+ *
+ * Because attributes don't share a serialization stream they can be
+ * deserialized on demand and written back without being re-serialized.
+ */
+final class FramedSessionData {
+
+  private FramedSessionData() {
+  }
+
+  static byte[] encode(long version, byte[] sessionFields, byte[] attributesHash, Map<String, byte[]> serializedAttributes) throws IOException {
+    int size = SessionDataHeader.LENGTH + 12 + sessionFields.length + attributesHash.length;
+    for (Map.Entry<String, byte[]> attribute : serializedAttributes.entrySet()) {
+      size += 6 + attribute.getKey().length() + attribute.getValue().length;
+    }
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
+    byte[] header = new byte[SessionDataHeader.LENGTH];
+    SessionDataHeader.write(header, SessionDataHeader.FORMAT_ATTRIBUTES, version);
+    bos.write(header);
+
+    DataOutputStream dos = new DataOutputStream(bos);
+    writeBytes(dos, sessionFields);
+    writeBytes(dos, attributesHash);
+    dos.writeInt(serializedAttributes.size());
+    for (Map.Entry<String, byte[]> attribute : serializedAttributes.entrySet()) {
+      dos.writeUTF(attribute.getKey());
+      writeBytes(dos, attribute.getValue());
+    }
+    dos.flush();
+
+    return bos.toByteArray();
+  }
+
+  /**
+   * @param lazy keep attributes serialized until they are first accessed
+   */
+  static void decodeInto(byte[] data, RedisSession session, SessionSerializationMetadata metadata,
+                         AttributeSerializer serializer, boolean lazy) throws IOException, ClassNotFoundException {
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, SessionDataHeader.LENGTH, data.length - SessionDataHeader.LENGTH));
+
+    serializer.deserializeSessionFieldsInto(readBytes(dis), session);
+    metadata.setSessionAttributesHash(readBytes(dis));
+    metadata.setVersion(SessionDataHeader.versionOf(data));
+
+    int attributeCount = dis.readInt();
+    Map<String, Long> attributeHashes = new TreeMap<>();
+    for (int i = 0; i < attributeCount; i++) {
+      String name = dis.readUTF();
+      byte[] value = readBytes(dis);
+      attributeHashes.put(name, XXHash64.hash(value));
+      if (lazy) {
+        session.putSerializedAttribute(name, value);
+      } else {
+        session.putLoadedAttribute(name, serializer.deserializeAttribute(value));
+      }
+    }
+    metadata.setAttributeHashes(attributeHashes);
+  }
+
+  private static void writeBytes(DataOutputStream dos, byte[] bytes) throws IOException {
+    dos.writeInt(bytes.length);
+    dos.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream dis) throws IOException {
+    byte[] bytes = new byte[dis.readInt()];
+    dis.readFully(bytes);
+    return bytes;
+  }
+}
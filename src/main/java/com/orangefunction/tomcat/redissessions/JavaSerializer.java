@@ -5,17 +5,28 @@ import org.apache.catalina.util.CustomObjectInputStream;
 import javax.servlet.http.HttpSession;
 
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 import java.io.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
-public class JavaSerializer implements Serializer {
+public class JavaSerializer implements AttributeSerializer {
+  private static final byte[] STREAM_HEADER = new byte[] {
+    (byte)(ObjectStreamConstants.STREAM_MAGIC >>> 8), (byte)ObjectStreamConstants.STREAM_MAGIC,
+    (byte)(ObjectStreamConstants.STREAM_VERSION >>> 8), (byte)ObjectStreamConstants.STREAM_VERSION
+  };
+
   private ClassLoader loader;
 
+  /**
+   * An ObjectOutputStream (and its buffer) per thread, reused for every
+   * attribute and session: creating one allocates a few kilobytes of
+   * buffers and tables, more than most attributes take to serialize.
+   */
+  private final ThreadLocal<AttributeOutput> attributeOutputs = new ThreadLocal<>();
+
   private final Log log = LogFactory.getLog(JavaSerializer.class);
 
   @Override
@@ -23,54 +34,134 @@ public class JavaSerializer implements Serializer {
     this.loader = loader;
   }
 
+  /**
+   * Hashes each attribute serialized on its own (with xxHash64, in the
+   * order of the attribute names), the same way the manager does for
+   * attributes it serializes one by one.
+   */
   public byte[] attributesHashFrom(RedisSession session) throws IOException {
-    HashMap<String,Object> attributes = new HashMap<String,Object>();
+    Map<String, Long> attributeHashes = new TreeMap<>();
     for (Enumeration<String> enumerator = session.getAttributeNames(); enumerator.hasMoreElements();) {
       String key = enumerator.nextElement();
-      attributes.put(key, session.getAttribute(key));
+      attributeHashes.put(key, XXHash64.hash(serializeAttribute(session.getAttribute(key))));
     }
+    return RedisSessionManager.attributesHashFrom(attributeHashes);
+  }
 
-    byte[] serialized = null;
+  @Override
+  public byte[] serializeFrom(final RedisSession session, final SessionSerializationMetadata metadata) throws IOException {
+    return serialize(new StreamWrite() {
+      @Override
+      public void writeTo(ObjectOutputStream oos) throws IOException {
+        oos.writeObject(metadata);
+        session.writeObjectData(oos);
+      }
+    });
+  }
 
-    try (
-         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-         ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(bos));
-    ) {
-      oos.writeUnshared(attributes);
-      oos.flush();
-      serialized = bos.toByteArray();
+  @Override
+  public byte[] serializeAttribute(final Object value) throws IOException {
+    return serialize(new StreamWrite() {
+      @Override
+      public void writeTo(ObjectOutputStream oos) throws IOException {
+        oos.writeObject(value);
+      }
+    });
+  }
+
+  private interface StreamWrite {
+    void writeTo(ObjectOutputStream oos) throws IOException;
+  }
+
+  private byte[] serialize(StreamWrite streamWrite) throws IOException {
+    AttributeOutput output = attributeOutputs.get();
+    if (output == null || output.inUse) {
+      AttributeOutput created = new AttributeOutput();
+      if (output == null) {
+        attributeOutputs.set(created);
+      }
+      output = created;
     }
 
-    MessageDigest digester = null;
+    output.inUse = true;
+    boolean reusable = false;
     try {
-      digester = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException e) {
-      log.error("Unable to get MessageDigest instance for MD5");
+      byte[] serialized = output.write(streamWrite);
+      reusable = !output.buffer.isOversized();
+      return serialized;
+    } finally {
+      output.inUse = false;
+      if (!reusable && attributeOutputs.get() == output) {
+        // Failed writes may leave the stream in any state.
+        attributeOutputs.remove();
+      }
+    }
+  }
+
+  /**
+   * Produces the same bytes as writing to a new ObjectOutputStream, by
+   * resetting the stream between writes and writing the stream header in
+   * front of each.
+   */
+  private static class AttributeOutput {
+    final ScratchBuffer buffer = new ScratchBuffer();
+    final ObjectOutputStream oos;
+    boolean inUse = false;
+
+    AttributeOutput() throws IOException {
+      oos = new ObjectOutputStream(buffer);
+    }
+
+    byte[] write(StreamWrite streamWrite) throws IOException {
+      oos.flush();
+      buffer.reset();
+      buffer.write(STREAM_HEADER);
+      streamWrite.writeTo(oos);
+      oos.flush();
+      byte[] serialized = buffer.toByteArray();
+      // Forget the objects written, so that the thread doesn't keep them.
+      oos.reset();
+      return serialized;
+    }
+  }
+
+  @Override
+  public Object deserializeAttribute(byte[] data) throws IOException, ClassNotFoundException {
+    try(
+        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        ObjectInputStream ois = new CustomObjectInputStream(bis, loader);
+    ) {
+      return ois.readObject();
     }
-    return digester.digest(serialized);
   }
 
   @Override
-  public byte[] serializeFrom(RedisSession session, SessionSerializationMetadata metadata) throws IOException {
+  public byte[] serializeSessionFields(RedisSession session) throws IOException {
     byte[] serialized = null;
 
     try (
          ByteArrayOutputStream bos = new ByteArrayOutputStream();
-         ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+         DataOutputStream dos = new DataOutputStream(bos);
     ) {
-      oos.writeObject(metadata);
-      session.writeObjectData(oos);
-      oos.flush();
+      session.writeFieldsData(dos);
+      dos.flush();
       serialized = bos.toByteArray();
     }
 
     return serialized;
   }
 
+  @Override
+  public void deserializeSessionFieldsInto(byte[] data, RedisSession session) throws IOException, ClassNotFoundException {
+    try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data))) {
+      session.readFieldsData(dis);
+    }
+  }
+
   @Override
   public void deserializeInto(byte[] data, RedisSession session, SessionSerializationMetadata metadata) throws IOException, ClassNotFoundException {
     try(
-        BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(data));
+        ByteArrayInputStream bis = new ByteArrayInputStream(data);
         ObjectInputStream ois = new CustomObjectInputStream(bis, loader);
     ) {
       SessionSerializationMetadata serializedMetadata = (SessionSerializationMetadata)ois.readObject();
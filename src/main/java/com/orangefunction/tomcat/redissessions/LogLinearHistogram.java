@@ -0,0 +1,106 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A histogram of non-negative values recorded concurrently without locks,
+ * in the manner of HdrHistogram: values are counted in buckets whose width
+ * grows with the value (16 buckets per power of two), so percentiles are
+ * accurate to within 1/16 of the value at any magnitude, in a fixed amount
+ * of memory (under 8 KB.)
+ */
+final class LogLinearHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucketOf(value));
+    sum.addAndGet(value);
+    long currentMax;
+    while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+      // Retry with the max recorded concurrently.
+    }
+  }
+
+  /**
+   * Records the microseconds elapsed since the given System.nanoTime().
+   */
+  void recordMicrosSince(long startNanos) {
+    record((System.nanoTime() - startNanos) / 1000);
+  }
+
+  /**
+   * Values recorded while the snapshot is taken may be partly included.
+   */
+  HistogramSnapshot snapshot() {
+    long[] snapshotCounts = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshotCounts[i] = counts.get(i);
+      count += snapshotCounts[i];
+    }
+    long snapshotMax = max.get();
+    return new HistogramSnapshot(count,
+                                 count == 0 ? 0 : (double)sum.get() / count,
+                                 percentile(snapshotCounts, count, snapshotMax, 50),
+                                 percentile(snapshotCounts, count, snapshotMax, 90),
+                                 percentile(snapshotCounts, count, snapshotMax, 99),
+                                 percentile(snapshotCounts, count, snapshotMax, 99.9),
+                                 snapshotMax);
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    sum.set(0);
+    max.set(0);
+  }
+
+  /**
+   * @return the highest value of the bucket holding the percentile
+   */
+  private static long percentile(long[] counts, long count, long max, double percentile) {
+    long rank = (long)Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return Math.min(highestValueIn(i), max);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Values below 16 have a bucket each; above, each power of two is split
+   * into 16 buckets of equal width.
+   */
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+  }
+
+  static long highestValueIn(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,298 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+
+/**
+ * Sends the commands of every request over a few shared connections instead
+ * of a pooled connection per request thread. Each connection is driven by a
+ * dispatcher thread that sends all the commands queued in the meantime in a
+ * single pipeline, so concurrent requests share round trips and the number
+ * of requests waiting on Redis isn't capped by the size of a pool.
+ *
+ * Sessions are assigned to a connection by key, so the commands about a
+ * session are sent in order. A caller only waits for its own reply (up to
+ * twice the timeout, or indefinitely if it's 0); a connection that fails
+ * fails the commands of its batch and is opened again for the next one.
+ */
+final class MultiplexedSessionStore implements SessionStore {
+
+  static final int MAX_BATCH_SIZE = 256;
+  static final int QUEUE_CAPACITY = 10000;
+
+  private final Log log = LogFactory.getLog(MultiplexedSessionStore.class);
+
+  private final String host;
+  private final int port;
+  private final int timeout;
+  private final String password;
+  private final int database;
+  private final SessionStoreMetrics metrics;
+
+  private final Connection[] connections;
+  private volatile boolean closed = false;
+
+  MultiplexedSessionStore(String host, int port, int timeout, String password, int database, int connectionCount, SessionStoreMetrics metrics) {
+    this.host = host;
+    this.port = port;
+    this.timeout = timeout;
+    this.password = password;
+    this.database = database;
+    this.metrics = metrics;
+
+    this.connections = new Connection[connectionCount];
+    for (int i = 0; i < connectionCount; i++) {
+      connections[i] = new Connection("RedisSessionConnection-" + i);
+      connections[i].start();
+    }
+  }
+
+  @Override
+  public byte[] get(final byte[] key) throws IOException {
+    return (byte[])send(new Command(key) {
+      @Override
+      void sendTo(Pipeline pipeline) {
+        pipeline.get(key);
+      }
+    }, metrics.getLatency);
+  }
+
+  @Override
+  public void set(final byte[] key, final byte[] data, final int expiration) throws IOException {
+    send(new Command(key) {
+      @Override
+      void sendTo(Pipeline pipeline) {
+        if (expiration > 0) {
+          pipeline.setex(key, expiration, data);
+        } else {
+          pipeline.set(key, data);
+        }
+      }
+    }, metrics.setLatency);
+  }
+
+  @Override
+  public boolean setIfAbsent(final byte[] key, final byte[] data, final int expiration) throws IOException {
+    Object reply = send(new Command(key) {
+      @Override
+      void sendTo(Pipeline pipeline) {
+        if (expiration > 0) {
+          pipeline.set(key, data, RedisSessionManager.SET_IF_NOT_EXISTS, RedisSessionManager.SET_EXPIRE_SECONDS, expiration);
+        } else {
+          pipeline.set(key, data, RedisSessionManager.SET_IF_NOT_EXISTS);
+        }
+      }
+    }, metrics.setLatency);
+    return null != reply; // "OK" = key set; nil = key already existed
+  }
+
+  @Override
+  public void expire(final byte[] key, final int expiration) throws IOException {
+    if (expiration <= 0) {
+      return;
+    }
+    send(new Command(key) {
+      @Override
+      void sendTo(Pipeline pipeline) {
+        pipeline.expire(key, expiration);
+      }
+    }, metrics.expireLatency);
+  }
+
+  @Override
+  public void del(final byte[] key) throws IOException {
+    send(new Command(key) {
+      @Override
+      void sendTo(Pipeline pipeline) {
+        pipeline.del(key);
+      }
+    }, metrics.delLatency);
+  }
+
+  /**
+   * Stops the dispatcher threads, failing the commands still queued, and
+   * closes the connections.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    for (Connection connection : connections) {
+      connection.interrupt();
+    }
+    for (Connection connection : connections) {
+      try {
+        connection.join(timeout);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private Object send(Command command, LogLinearHistogram latency) throws IOException {
+    if (closed) {
+      throw new IOException("The session store is closed");
+    }
+
+    long start = System.nanoTime();
+    try {
+      Connection connection = connections[(Arrays.hashCode(command.key) & Integer.MAX_VALUE) % connections.length];
+      if (timeout <= 0) {
+        // Like a socket timeout of 0, wait as long as it takes, unless the
+        // store is closed meanwhile and nothing is left to reply.
+        while (!connection.queue.offer(command, 1, TimeUnit.SECONDS)) {
+          if (closed) {
+            throw new IOException("The session store is closed");
+          }
+        }
+        while (!command.done.await(1, TimeUnit.SECONDS)) {
+          if (closed && !connection.isAlive()) {
+            throw new IOException("The session store is closed");
+          }
+        }
+      } else {
+        if (!connection.queue.offer(command, timeout, TimeUnit.MILLISECONDS)) {
+          throw new IOException("Too many commands waiting to be sent to Redis");
+        }
+        if (!command.done.await(2L * timeout, TimeUnit.MILLISECONDS)) {
+          throw new IOException("Timed out waiting for a reply from Redis");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a reply from Redis", e);
+    } finally {
+      latency.recordMicrosSince(start);
+    }
+
+    if (command.reply instanceof Exception) {
+      Exception error = (Exception)command.reply;
+      throw new IOException(error.getMessage(), error);
+    }
+    return command.reply;
+  }
+
+  /**
+   * A command waiting to be sent, and then for its reply (or the error
+   * that prevented it.)
+   */
+  private abstract static class Command {
+    final byte[] key;
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile Object reply;
+
+    Command(byte[] key) {
+      this.key = key;
+    }
+
+    abstract void sendTo(Pipeline pipeline);
+
+    void complete(Object reply) {
+      this.reply = reply;
+      done.countDown();
+    }
+  }
+
+  private class Connection extends Thread {
+    final BlockingQueue<Command> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private Jedis jedis;
+
+    Connection(String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      List<Command> batch = new ArrayList<>(MAX_BATCH_SIZE);
+      try {
+        while (!closed) {
+          Command first = queue.poll(1, TimeUnit.SECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+          send(batch);
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        // Closed.
+      } finally {
+        queue.drainTo(batch);
+        fail(batch, new IOException("The session store is closed"));
+        disconnect();
+      }
+    }
+
+    private void send(List<Command> batch) {
+      try {
+        if (jedis == null) {
+          jedis = connect();
+        }
+        Pipeline pipeline = jedis.pipelined();
+        for (Command command : batch) {
+          command.sendTo(pipeline);
+        }
+        // Errors of single commands are returned in place of their reply.
+        List<Object> replies = pipeline.syncAndReturnAll();
+        for (int i = 0; i < batch.size(); i++) {
+          batch.get(i).complete(replies.get(i));
+        }
+      } catch (RuntimeException e) {
+        log.warn("Error sending " + batch.size() + " commands to Redis at " + host + ":" + port + ": " + e.getMessage());
+        disconnect();
+        fail(batch, e);
+      }
+    }
+
+    private Jedis connect() {
+      Jedis connection = new Jedis(host, port, timeout);
+      try {
+        if (password != null) {
+          connection.auth(password);
+        }
+        if (database != 0) {
+          connection.select(database);
+        }
+        return connection;
+      } catch (RuntimeException e) {
+        connection.close();
+        throw e;
+      }
+    }
+
+    private void disconnect() {
+      if (jedis != null) {
+        try {
+          jedis.close();
+        } catch (Exception e) {
+          // Do nothing.
+        }
+        jedis = null;
+      }
+    }
+
+    private void fail(List<Command> batch, Exception error) {
+      for (Command command : batch) {
+        if (command.done.getCount() > 0) {
+          command.complete(error);
+        }
+      }
+      batch.clear();
+    }
+  }
+}
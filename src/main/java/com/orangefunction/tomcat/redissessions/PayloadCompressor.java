@@ -0,0 +1,188 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Compresses serialized session data above a size threshold. Compressed
+ * data starts with a 3 byte magic value, a codec byte and the uncompressed
+ * length, so it is recognized (and decompressed) regardless of the current
+ * configuration.
+ *
+ * The data may begin with a prefix (e.g., the {@link SessionDataHeader})
+ * that is kept uncompressed so it can still be read inside Redis.
+ *
+ * Deflaters and inflaters are pooled, since creating them (and their
+ * native zlib state) for every save costs more than the compression itself
+ * for small payloads. The pools hold one of each per processor, as that
+ * many can be busy at once, and any others are ended as soon as they're
+ * returned so their native memory is freed. The buffer used while
+ * compressing is kept per thread, up to the size ScratchBuffer retains.
+ */
+final class PayloadCompressor {
+
+  static final byte[] MAGIC = new byte[] { 'R', 'S', 'Z' };
+  static final int CODEC_OFFSET = MAGIC.length;
+  static final int LENGTH_OFFSET = CODEC_OFFSET + 1;
+  static final int HEADER_LENGTH = LENGTH_OFFSET + 4;
+
+  static final byte CODEC_DEFLATE = 1;
+
+  private static final int MAX_POOLED_BUFFER_SIZE = ScratchBuffer.MAX_RETAINED_SIZE;
+  private static final int MAX_POOLED_CODECS = Runtime.getRuntime().availableProcessors();
+
+  private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_POOLED_CODECS);
+  private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(MAX_POOLED_CODECS);
+  private static final ThreadLocal<byte[]> buffers = new ThreadLocal<>();
+
+  private final int threshold;
+  private final int level;
+
+  /**
+   * @param threshold minimum size (after the prefix) of data to compress
+   * @param level the Deflater compression level
+   */
+  PayloadCompressor(int threshold, int level) {
+    this.threshold = threshold;
+    this.level = level;
+  }
+
+  /**
+   * @param prefixLength number of leading bytes to keep uncompressed
+   * @return the compressed data, or the data itself if it is below the
+   *         threshold or doesn't get any smaller
+   */
+  byte[] compress(byte[] data, int prefixLength) {
+    int length = data.length - prefixLength;
+    // Compressing is only worthwhile if it saves more than the header.
+    if (length < threshold || length <= HEADER_LENGTH) {
+      return data;
+    }
+
+    Deflater deflater = deflaters.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level);
+    } else {
+      deflater.setLevel(level);
+    }
+    try {
+      return compress(deflater, data, prefixLength, length);
+    } finally {
+      deflater.reset();
+      if (!deflaters.offer(deflater)) {
+        deflater.end();
+      }
+    }
+  }
+
+  private static byte[] compress(Deflater deflater, byte[] data, int prefixLength, int length) {
+    deflater.setInput(data, prefixLength, length);
+    deflater.finish();
+
+    int limit = prefixLength + length - HEADER_LENGTH;
+    byte[] buffer = buffers.get();
+    if (buffer == null || buffer.length < limit) {
+      buffer = new byte[limit];
+      if (limit <= MAX_POOLED_BUFFER_SIZE) {
+        buffers.set(buffer);
+      }
+    }
+
+    int position = prefixLength + HEADER_LENGTH;
+    while (!deflater.finished() && position < limit) {
+      position += deflater.deflate(buffer, position, limit - position);
+    }
+    if (!deflater.finished()) {
+      return data;
+    }
+
+    System.arraycopy(data, 0, buffer, 0, prefixLength);
+    System.arraycopy(MAGIC, 0, buffer, prefixLength, MAGIC.length);
+    buffer[prefixLength + CODEC_OFFSET] = CODEC_DEFLATE;
+    writeInt(buffer, prefixLength + LENGTH_OFFSET, length);
+
+    byte[] compressed = new byte[position];
+    System.arraycopy(buffer, 0, compressed, 0, position);
+    return compressed;
+  }
+
+  static boolean isCompressed(byte[] data, int prefixLength) {
+    if (data.length < prefixLength + HEADER_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (data[prefixLength + i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the data with everything after the prefix decompressed, or the
+   *         data itself if it isn't compressed
+   */
+  static byte[] decompress(byte[] data, int prefixLength) throws IOException {
+    if (!isCompressed(data, prefixLength)) {
+      return data;
+    }
+
+    byte codec = data[prefixLength + CODEC_OFFSET];
+    if (codec != CODEC_DEFLATE) {
+      throw new IOException("Unknown compression codec " + codec);
+    }
+
+    int length = readInt(data, prefixLength + LENGTH_OFFSET);
+    byte[] decompressed = new byte[prefixLength + length];
+    System.arraycopy(data, 0, decompressed, 0, prefixLength);
+
+    Inflater inflater = inflaters.poll();
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    int offset = prefixLength + HEADER_LENGTH;
+    inflater.setInput(data, offset, data.length - offset);
+
+    try {
+      int position = prefixLength;
+      while (position < decompressed.length) {
+        int inflated = inflater.inflate(decompressed, position, decompressed.length - position);
+        if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+          break;
+        }
+        position += inflated;
+      }
+      if (position != decompressed.length || !inflater.finished()) {
+        throw new IOException("Compressed data is truncated or corrupt");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Unable to decompress data", e);
+    } finally {
+      inflater.reset();
+      if (!inflaters.offer(inflater)) {
+        inflater.end();
+      }
+    }
+
+    return decompressed;
+  }
+
+  private static void writeInt(byte[] data, int offset, int value) {
+    data[offset] = (byte)(value >>> 24);
+    data[offset + 1] = (byte)(value >>> 16);
+    data[offset + 2] = (byte)(value >>> 8);
+    data[offset + 3] = (byte)value;
+  }
+
+  private static int readInt(byte[] data, int offset) {
+    return (data[offset] & 0xFF) << 24
+         | (data[offset + 1] & 0xFF) << 16
+         | (data[offset + 2] & 0xFF) << 8
+         | (data[offset + 3] & 0xFF);
+  }
+}
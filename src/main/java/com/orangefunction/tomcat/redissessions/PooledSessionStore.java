@@ -0,0 +1,78 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import redis.clients.jedis.Jedis;
+
+
+/**
+ * Runs each command on a connection borrowed from the manager's pools
+ * (or leased to the request), following Redis Cluster redirections and
+ * keeping the expiry index up to date.
+ */
+final class PooledSessionStore implements SessionStore {
+
+  private final RedisSessionManager manager;
+
+  PooledSessionStore(RedisSessionManager manager) {
+    this.manager = manager;
+  }
+
+  @Override
+  public byte[] get(final byte[] key) throws IOException {
+    return manager.execute(new String(key, StandardCharsets.UTF_8), new RedisCommand<byte[]>() {
+      @Override
+      public byte[] execute(Jedis jedis) {
+        return manager.getSessionData(jedis, key);
+      }
+    });
+  }
+
+  @Override
+  public void set(final byte[] key, final byte[] data, final int expiration) throws IOException {
+    manager.execute(new String(key, StandardCharsets.UTF_8), new RedisCommand<Void>() {
+      @Override
+      public Void execute(Jedis jedis) {
+        manager.setSessionData(jedis, key, data, expiration);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public boolean setIfAbsent(final byte[] key, final byte[] data, final int expiration) throws IOException {
+    return manager.execute(new String(key, StandardCharsets.UTF_8), new RedisCommand<Boolean>() {
+      @Override
+      public Boolean execute(Jedis jedis) {
+        return manager.setSessionDataIfAbsent(jedis, key, data, expiration);
+      }
+    });
+  }
+
+  @Override
+  public void expire(final byte[] key, final int expiration) throws IOException {
+    manager.execute(new String(key, StandardCharsets.UTF_8), new RedisCommand<Void>() {
+      @Override
+      public Void execute(Jedis jedis) {
+        manager.expireSessionData(jedis, key, expiration);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void del(final byte[] key) throws IOException {
+    manager.execute(new String(key, StandardCharsets.UTF_8), new RedisCommand<Long>() {
+      @Override
+      public Long execute(Jedis jedis) {
+        return manager.deleteSessionData(jedis, key);
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    // The manager owns the pools.
+  }
+}
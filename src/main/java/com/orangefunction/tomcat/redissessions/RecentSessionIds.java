@@ -0,0 +1,61 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * The session ids this server did something with (e.g., wrote) within a
+ * given period, along with when it last did.
+ */
+class RecentSessionIds {
+
+  private final long periodMillis;
+
+  /** Time each recent session id was last recorded at. */
+  private final ConcurrentMap<String, Long> recordedAt = new ConcurrentHashMap<>();
+
+  RecentSessionIds(long periodMillis) {
+    this.periodMillis = periodMillis;
+  }
+
+  void record(String id) {
+    recordedAt.put(id, System.currentTimeMillis());
+  }
+
+  /**
+   * @return true if the id was recorded less than a period ago
+   */
+  boolean isRecent(String id) {
+    Long at = recordedAt.get(id);
+    if (at == null) {
+      return false;
+    }
+    if (System.currentTimeMillis() - at < periodMillis) {
+      return true;
+    }
+    recordedAt.remove(id, at);
+    return false;
+  }
+
+  void forget(String id) {
+    recordedAt.remove(id);
+  }
+
+  /**
+   * Forgets the ids recorded more than a period ago.
+   */
+  void expire() {
+    long oldest = System.currentTimeMillis() - periodMillis;
+    for (Iterator<Long> iter = recordedAt.values().iterator(); iter.hasNext();) {
+      if (iter.next() < oldest) {
+        iter.remove();
+      }
+    }
+  }
+
+  void clear() {
+    recordedAt.clear();
+  }
+}
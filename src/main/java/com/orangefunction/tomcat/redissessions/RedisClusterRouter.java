@@ -0,0 +1,386 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.util.JedisClusterCRC16;
+
+
+/**
+ * Routes session keys to the Redis Cluster master owning their hash slot,
+ * with one connection pool per master.
+ *
+ * The slot table is read with CLUSTER NODES from any reachable node when
+ * the router starts and again (at most once per second) whenever Redis
+ * reports a moved slot or a node can't be reached, so failovers and
+ * resharding are picked up without a restart. The pool of a node that no
+ * longer serves any slot is destroyed once its borrowed connections have
+ * been returned and no thread is borrowing from it; a thread that finds it
+ * destroyed anyway looks the slot up again.
+ */
+class RedisClusterRouter implements RedisRouter {
+
+  static final int SLOT_COUNT = 16384;
+
+  private static final long MIN_REFRESH_INTERVAL_MILLIS = 1000;
+
+  private final Log log = LogFactory.getLog(RedisClusterRouter.class);
+
+  private final Set<HostAndPort> seedNodes;
+  private final JedisPoolConfig poolConfig;
+  private final int timeout;
+  private final String password;
+
+  private final Map<String, NodePool> pools = new ConcurrentHashMap<>();
+  /** Pools of nodes no longer serving any slot, waiting for their connections. */
+  private final Map<String, NodePool> retiredPools = new HashMap<>();
+  private volatile NodePool[] slots = new NodePool[SLOT_COUNT];
+  private long lastRefreshMillis = 0;
+
+  RedisClusterRouter(Set<HostAndPort> seedNodes, JedisPoolConfig poolConfig, int timeout, String password) {
+    this.seedNodes = seedNodes;
+    this.poolConfig = poolConfig;
+    this.timeout = timeout;
+    this.password = password;
+  }
+
+  /**
+   * The hash slot of a key. Only the part between the first '{' and the
+   * following '}' (the hash tag) is hashed if there is one, so keys sharing
+   * a hash tag are stored on the same node.
+   */
+  static int slotOf(String key) {
+    return JedisClusterCRC16.getSlot(key);
+  }
+
+  @Override
+  public Jedis acquireConnection(String key) {
+    while (true) {
+      NodePool pool = slots[slotOf(key)];
+      if (pool == null) {
+        refresh(true);
+        pool = slots[slotOf(key)];
+        if (pool == null) {
+          throw new IllegalStateException("No Redis Cluster node serves the hash slot of " + key);
+        }
+      }
+      Jedis jedis = borrowFrom(pool);
+      if (jedis != null) {
+        return jedis;
+      }
+      // The pool was retired and destroyed since it was looked up, which
+      // happens only after the slot table no longer refers to it.
+    }
+  }
+
+  Jedis acquireConnection(HostAndPort node) {
+    while (true) {
+      Jedis jedis = borrowFrom(poolFor(node));
+      if (jedis != null) {
+        return jedis;
+      }
+    }
+  }
+
+  /**
+   * @return a connection of the pool, or null if the pool was destroyed
+   */
+  private Jedis borrowFrom(NodePool pool) {
+    if (!pool.startBorrowing()) {
+      return null;
+    }
+    try {
+      return pool.getResource();
+    } finally {
+      pool.stopBorrowing();
+      if (pool.retired) {
+        destroyIdleRetiredPools();
+      }
+    }
+  }
+
+  @Override
+  public void returnConnection(Jedis jedis, boolean error) {
+    String key = nodeKey(jedis.getClient().getHost(), jedis.getClient().getPort());
+    NodePool pool = pools.get(key);
+    boolean retired = false;
+    if (pool == null) {
+      synchronized (pools) {
+        pool = pools.get(key);
+        if (pool == null) {
+          pool = retiredPools.get(key);
+          retired = pool != null;
+        }
+      }
+    }
+
+    if (pool == null) {
+      // Not borrowed from this router's pools.
+      jedis.close();
+      return;
+    }
+    if (error) {
+      pool.returnBrokenResource(jedis);
+    } else {
+      pool.returnResource(jedis);
+    }
+    if (retired) {
+      destroyIdleRetiredPools();
+    }
+  }
+
+  /**
+   * Records that a slot is now served by another node (a MOVED reply) and
+   * re-reads the slot table, since other slots have likely moved as well.
+   */
+  void slotMoved(int slot, HostAndPort node) {
+    slots[slot] = poolFor(node);
+    refresh(false);
+  }
+
+  /**
+   * Re-reads the slot table after a node couldn't be reached.
+   */
+  void nodeUnreachable() {
+    refresh(false);
+  }
+
+  @Override
+  public String nodeOf(String key) {
+    NodePool pool = slots[slotOf(key)];
+    for (Map.Entry<String, NodePool> entry : pools.entrySet()) {
+      if (entry.getValue() == pool) {
+        return entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return a pool for each master serving at least one slot
+   */
+  @Override
+  public Collection<JedisPool> pools() {
+    Set<JedisPool> masters = new LinkedHashSet<>();
+    for (JedisPool pool : slots) {
+      if (pool != null) {
+        masters.add(pool);
+      }
+    }
+    return masters;
+  }
+
+  /**
+   * @param force refresh even if the table was refreshed less than a
+   *        second ago
+   */
+  synchronized void refresh(boolean force) {
+    long now = System.currentTimeMillis();
+    if (!force && now - lastRefreshMillis < MIN_REFRESH_INTERVAL_MILLIS) {
+      return;
+    }
+    lastRefreshMillis = now;
+
+    List<HostAndPort> candidates = new ArrayList<>();
+    for (String key : pools.keySet()) {
+      int separator = key.lastIndexOf(':');
+      candidates.add(new HostAndPort(key.substring(0, separator), Integer.parseInt(key.substring(separator + 1))));
+    }
+    candidates.addAll(seedNodes);
+
+    for (HostAndPort candidate : candidates) {
+      Jedis jedis = new Jedis(candidate.getHost(), candidate.getPort(), timeout);
+      try {
+        if (password != null) {
+          jedis.auth(password);
+        }
+        updateSlots(jedis.clusterNodes(), candidate);
+        return;
+      } catch (Exception e) {
+        log.warn("Unable to read the cluster slots from " + candidate + ": " + e.getMessage());
+      } finally {
+        jedis.close();
+      }
+    }
+    log.error("Unable to read the cluster slots from any Redis Cluster node");
+  }
+
+  @Override
+  public void destroy() {
+    synchronized (pools) {
+      for (NodePool pool : pools.values()) {
+        destroy(pool);
+      }
+      for (NodePool pool : retiredPools.values()) {
+        destroy(pool);
+      }
+      pools.clear();
+      retiredPools.clear();
+    }
+    slots = new NodePool[SLOT_COUNT];
+  }
+
+  /**
+   * Parses the output of CLUSTER NODES: one line per node of the form
+   * "id host:port[@bus-port] flags master ping pong epoch link slot...",
+   * where a slot is either a number, a range "from-to" or a slot being
+   * migrated in brackets (which is still served by this node.)
+   */
+  private void updateSlots(String clusterNodes, HostAndPort queriedNode) {
+    NodePool[] updatedSlots = new NodePool[SLOT_COUNT];
+    Set<NodePool> usedPools = new LinkedHashSet<>();
+
+    for (String line : clusterNodes.split("\n")) {
+      String[] parts = line.trim().split(" ");
+      if (parts.length < 9 || parts[2].contains("fail") || parts[2].contains("noaddr")) {
+        continue;
+      }
+
+      String address = parts[1];
+      int busSeparator = address.indexOf('@');
+      if (busSeparator >= 0) {
+        address = address.substring(0, busSeparator);
+      }
+      int separator = address.lastIndexOf(':');
+      String host = address.substring(0, separator);
+      if (host.isEmpty()) {
+        // The queried node doesn't know its own address yet.
+        host = queriedNode.getHost();
+      }
+      NodePool pool = poolFor(new HostAndPort(host, Integer.parseInt(address.substring(separator + 1))));
+
+      for (int i = 8; i < parts.length; i++) {
+        String slotRange = parts[i];
+        if (slotRange.startsWith("[")) {
+          continue;
+        }
+        int rangeSeparator = slotRange.indexOf('-');
+        int from = Integer.parseInt(rangeSeparator < 0 ? slotRange : slotRange.substring(0, rangeSeparator));
+        int to = rangeSeparator < 0 ? from : Integer.parseInt(slotRange.substring(rangeSeparator + 1));
+        for (int slot = from; slot <= to; slot++) {
+          updatedSlots[slot] = pool;
+        }
+        usedPools.add(pool);
+      }
+    }
+
+    slots = updatedSlots;
+    log.debug("Read the slots of " + usedPools.size() + " Redis Cluster masters");
+
+    synchronized (pools) {
+      for (Iterator<Map.Entry<String, NodePool>> iter = pools.entrySet().iterator(); iter.hasNext();) {
+        Map.Entry<String, NodePool> entry = iter.next();
+        if (!usedPools.contains(entry.getValue())) {
+          log.info("Redis Cluster node " + entry.getKey() + " no longer serves any slot; closing its connections");
+          iter.remove();
+          entry.getValue().retired = true;
+          retiredPools.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    destroyIdleRetiredPools();
+  }
+
+  /**
+   * Destroys the retired pools without borrowed connections or threads
+   * borrowing from them.
+   */
+  private void destroyIdleRetiredPools() {
+    synchronized (pools) {
+      for (Iterator<NodePool> iter = retiredPools.values().iterator(); iter.hasNext();) {
+        NodePool pool = iter.next();
+        if (pool.markDestroyedIfIdle()) {
+          iter.remove();
+          destroy(pool);
+        }
+      }
+    }
+  }
+
+  private static void destroy(JedisPool pool) {
+    try {
+      pool.destroy();
+    } catch (Exception e) {
+      // Do nothing.
+    }
+  }
+
+  private NodePool poolFor(HostAndPort node) {
+    String key = nodeKey(node.getHost(), node.getPort());
+    NodePool pool = pools.get(key);
+    if (pool == null) {
+      synchronized (pools) {
+        pool = pools.get(key);
+        if (pool == null) {
+          // A node serving slots again gets its retired pool back, so that
+          // a node never has two pools.
+          pool = retiredPools.remove(key);
+          if (pool == null) {
+            pool = new NodePool(poolConfig, node.getHost(), node.getPort(), timeout, password);
+          }
+          pool.retired = false;
+          pools.put(key, pool);
+        }
+      }
+    }
+    return pool;
+  }
+
+  private static String nodeKey(String host, int port) {
+    return host + ":" + port;
+  }
+
+  private static final class NodePool extends JedisPool {
+
+    /** Whether the node no longer serves any slot; set while holding pools. */
+    volatile boolean retired = false;
+    /** Threads between looking the pool up and getting a connection. */
+    private int borrowers = 0;
+    private boolean destroyed = false;
+
+    NodePool(JedisPoolConfig poolConfig, String host, int port, int timeout, String password) {
+      super(poolConfig, host, port, timeout, password);
+    }
+
+    /**
+     * @return false if the pool was destroyed, so it can't be borrowed from
+     */
+    synchronized boolean startBorrowing() {
+      if (destroyed) {
+        return false;
+      }
+      borrowers++;
+      return true;
+    }
+
+    synchronized void stopBorrowing() {
+      borrowers--;
+    }
+
+    /**
+     * @return true if the pool had no borrowed connections and no thread
+     *         borrowing from it, and may now be destroyed
+     */
+    synchronized boolean markDestroyedIfIdle() {
+      if (borrowers > 0 || internalPool.getNumActive() > 0) {
+        return false;
+      }
+      destroyed = true;
+      return true;
+    }
+  }
+}
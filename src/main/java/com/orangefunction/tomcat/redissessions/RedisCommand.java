@@ -0,0 +1,16 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.IOException;
+
+import redis.clients.jedis.Jedis;
+
+
+/**
+ * Commands about a single session, run by
+ * {@link RedisSessionManager#execute(String, RedisCommand)} on a connection
+ * to the node holding the session. A command may be run again on another
+ * connection if Redis redirects it.
+ */
+interface RedisCommand<T> {
+  T execute(Jedis jedis) throws IOException;
+}
@@ -0,0 +1,163 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+
+/**
+ * The replicas of the Redis master that session reads are sent to, with a
+ * connection pool per replica, used in turn.
+ *
+ * Replication is asynchronous, so a replica may briefly serve a session
+ * older than the one just saved. To let a server read its own writes, the
+ * ids it wrote recently are recorded and read from the master until the
+ * replicas have most likely caught up.
+ */
+class RedisReplicaSet {
+
+  private final Log log = LogFactory.getLog(RedisReplicaSet.class);
+
+  private final JedisPoolConfig poolConfig;
+  private final int timeout;
+  private final String password;
+  private final int database;
+  private final Map<String, JedisPool> pools = new ConcurrentHashMap<>();
+  private volatile List<JedisPool> replicas = new ArrayList<>();
+  private final AtomicInteger next = new AtomicInteger();
+
+  /** The session ids recently written by this server. */
+  private final RecentSessionIds recentWrites;
+
+  /**
+   * @param recentWriteMillis how long a session is read from the master
+   *        after this server wrote it
+   */
+  RedisReplicaSet(JedisPoolConfig poolConfig, int timeout, String password, int database, long recentWriteMillis) {
+    this.poolConfig = poolConfig;
+    this.timeout = timeout;
+    this.password = password;
+    this.database = database;
+    this.recentWrites = new RecentSessionIds(recentWriteMillis);
+  }
+
+  /**
+   * Replaces the replicas reads are sent to, keeping the pools of those
+   * that remain.
+   */
+  synchronized void setReplicas(Collection<HostAndPort> nodes) {
+    Set<String> keys = new HashSet<>();
+    List<JedisPool> updatedReplicas = new ArrayList<>(nodes.size());
+    for (HostAndPort node : nodes) {
+      String key = node.getHost() + ":" + node.getPort();
+      JedisPool pool = pools.get(key);
+      if (pool == null) {
+        log.info("Reading sessions from Redis replica " + key);
+        pool = new JedisPool(poolConfig, node.getHost(), node.getPort(), timeout, password, database);
+        pools.put(key, pool);
+      }
+      keys.add(key);
+      updatedReplicas.add(pool);
+    }
+    replicas = updatedReplicas;
+
+    for (Iterator<Map.Entry<String, JedisPool>> iter = pools.entrySet().iterator(); iter.hasNext();) {
+      Map.Entry<String, JedisPool> entry = iter.next();
+      if (!keys.contains(entry.getKey())) {
+        log.info("No longer reading sessions from Redis replica " + entry.getKey());
+        iter.remove();
+        destroy(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Replaces the replicas with the ones of a master monitored by Redis
+   * Sentinel, skipping replicas Sentinel considers down or disconnected.
+   */
+  void setReplicasFromSentinel(List<Map<String, String>> sentinelSlaves) {
+    List<HostAndPort> nodes = new ArrayList<>(sentinelSlaves.size());
+    for (Map<String, String> slave : sentinelSlaves) {
+      String flags = slave.get("flags");
+      if (flags != null && (flags.contains("s_down") || flags.contains("o_down") || flags.contains("disconnected"))) {
+        continue;
+      }
+      nodes.add(new HostAndPort(slave.get("ip"), Integer.parseInt(slave.get("port"))));
+    }
+    setReplicas(nodes);
+  }
+
+  /**
+   * @return a connection to the next replica, or null if there is none
+   */
+  Jedis acquireConnection() {
+    List<JedisPool> current = replicas;
+    if (current.isEmpty()) {
+      return null;
+    }
+    JedisPool pool = current.get((next.getAndIncrement() & Integer.MAX_VALUE) % current.size());
+    return pool.getResource();
+  }
+
+  void returnConnection(Jedis jedis, boolean error) {
+    JedisPool pool = pools.get(jedis.getClient().getHost() + ":" + jedis.getClient().getPort());
+    if (pool == null) {
+      // The replica was removed in the meantime.
+      jedis.close();
+    } else if (error) {
+      pool.returnBrokenResource(jedis);
+    } else {
+      pool.returnResource(jedis);
+    }
+  }
+
+  void recordWrite(String id) {
+    recentWrites.record(id);
+  }
+
+  /**
+   * @return true if the session must be read from the master because this
+   *         server wrote it recently
+   */
+  boolean isRecentlyWritten(String id) {
+    return recentWrites.isRecent(id);
+  }
+
+  /**
+   * Forgets the writes replicas have most likely caught up with.
+   */
+  void expireRecentWrites() {
+    recentWrites.expire();
+  }
+
+  synchronized void destroy() {
+    for (JedisPool pool : pools.values()) {
+      destroy(pool);
+    }
+    pools.clear();
+    replicas = new ArrayList<>();
+    recentWrites.clear();
+  }
+
+  private static void destroy(JedisPool pool) {
+    try {
+      pool.destroy();
+    } catch (Exception e) {
+      // Do nothing.
+    }
+  }
+}
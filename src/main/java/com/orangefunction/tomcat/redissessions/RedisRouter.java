@@ -0,0 +1,31 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.Collection;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+
+/**
+ * Spreads sessions over several Redis servers, with a connection pool per
+ * server, by choosing the server storing each key.
+ */
+interface RedisRouter {
+
+  Jedis acquireConnection(String key);
+
+  void returnConnection(Jedis jedis, boolean error);
+
+  /**
+   * @return an identifier of the server storing the key, equal for keys
+   *         stored on the same server
+   */
+  String nodeOf(String key);
+
+  /**
+   * @return the pool of every server storing sessions
+   */
+  Collection<JedisPool> pools();
+
+  void destroy();
+}
@@ -0,0 +1,54 @@
+package com.orangefunction.tomcat.redissessions;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+
+/**
+ * A Lua script run with EVALSHA, falling back to EVAL (which also loads
+ * the script into the server's script cache) when Redis reports that it
+ * does not know the script yet.
+ */
+class RedisScript {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final byte[] script;
+  private final byte[] sha1;
+
+  RedisScript(String script) {
+    this.script = script.getBytes();
+    this.sha1 = sha1HexOf(this.script);
+  }
+
+  Object execute(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+    try {
+      return jedis.evalsha(sha1, keys, args);
+    } catch (JedisDataException e) {
+      if (e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT")) {
+        return jedis.eval(script, keys, args);
+      }
+      throw e;
+    }
+  }
+
+  private static byte[] sha1HexOf(byte[] script) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1").digest(script);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unable to get MessageDigest instance for SHA-1", e);
+    }
+
+    byte[] hex = new byte[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      hex[i * 2] = (byte)HEX[(digest[i] >> 4) & 0xF];
+      hex[i * 2 + 1] = (byte)HEX[digest[i] & 0xF];
+    }
+    return hex;
+  }
+}
@@ -3,8 +3,18 @@ package com.orangefunction.tomcat.redissessions;
 import java.security.Principal;
 import org.apache.catalina.Manager;
 import org.apache.catalina.session.StandardSession;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -27,24 +37,112 @@ public class RedisSession extends StandardSession {
   }
 
 
+  /** Created on the first change, since most requests change nothing. */
   protected HashMap<String, Object> changedAttributes;
   protected Boolean dirty;
 
+  /** The id encoded as a Redis key, cached until the id changes. */
+  private volatile BinaryKey binaryKey;
+
+  /**
+   * Attributes loaded from Redis that have not been deserialized yet (only
+   * used with lazy attribute deserialization.) An attribute is either here
+   * or in {@link #attributes}, never in both.
+   */
+  protected final Map<String, byte[]> serializedAttributes = new ConcurrentHashMap<>();
+
   public RedisSession(Manager manager) {
     super(manager);
     resetDirtyTracking();
   }
 
   public Boolean isDirty() {
-    return dirty || !changedAttributes.isEmpty();
+    return dirty || (changedAttributes != null && !changedAttributes.isEmpty());
   }
 
-  public HashMap<String, Object> getChangedAttributes() {
+  /**
+   * Attributes changed since the session was loaded or last saved. A removed
+   * attribute is recorded with a null value.
+   */
+  public Map<String, Object> getChangedAttributes() {
+    if (changedAttributes == null) {
+      return Collections.emptyMap();
+    }
     return changedAttributes;
   }
 
+  private void recordChange(String name, Object value) {
+    if (changedAttributes == null) {
+      changedAttributes = new HashMap<>();
+    }
+    changedAttributes.put(name, value);
+  }
+
+  /**
+   * @return the UTF-8 bytes of the session's Redis key (the manager's key
+   *         prefix followed by the id)
+   */
+  public byte[] getBinaryKey() {
+    String currentId = id;
+    BinaryKey cached = binaryKey;
+    if (cached == null || cached.id != currentId) {
+      String key = currentId;
+      if (currentId != null && manager instanceof RedisSessionManager) {
+        key = ((RedisSessionManager)manager).keyOf(currentId);
+      }
+      cached = new BinaryKey(currentId, key);
+      binaryKey = cached;
+    }
+    return cached.bytes;
+  }
+
+  /**
+   * Whether the session was marked dirty by a change that is not recorded
+   * in {@link #getChangedAttributes()} (the manual dirty tracking key or a
+   * new principal.)
+   */
+  public Boolean hasUntrackedChanges() {
+    return dirty;
+  }
+
+  /**
+   * Adopts the attributes of a copy of this session that was saved
+   * concurrently, keeping the attributes changed by this request. Listeners
+   * are not notified since the stored copy's changes have already happened.
+   */
+  public void mergeAttributesFrom(RedisSession stored) {
+    for (String key : keys()) {
+      if (!getChangedAttributes().containsKey(key)
+          && null == stored.attributes.get(key)
+          && null == stored.serializedAttributes.get(key)) {
+        attributes.remove(key);
+        serializedAttributes.remove(key);
+      }
+    }
+    for (Map.Entry<String, Object> entry : stored.attributes.entrySet()) {
+      if (!getChangedAttributes().containsKey(entry.getKey())) {
+        serializedAttributes.remove(entry.getKey());
+        attributes.put(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<String, byte[]> entry : stored.serializedAttributes.entrySet()) {
+      if (!getChangedAttributes().containsKey(entry.getKey())) {
+        attributes.remove(entry.getKey());
+        serializedAttributes.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Records an attribute as changed although it wasn't set through
+   * {@link #setAttribute(String, Object)} (i.e., it was modified in place.)
+   */
+  public void trackAttributeChange(String name) {
+    recordChange(name, getAttribute(name));
+  }
+
   public void resetDirtyTracking() {
-    changedAttributes = new HashMap<>();
+    changedAttributes = null;
     dirty = false;
   }
 
@@ -63,15 +161,14 @@ public class RedisSession extends StandardSession {
               || oldValue == null && value != null
               || !value.getClass().isInstance(oldValue)
               || !value.equals(oldValue) ) ) {
+      recordChange(key, value);
       if (this.manager instanceof RedisSessionManager
           && ((RedisSessionManager)this.manager).getSaveOnChange()) {
         try {
-          ((RedisSessionManager)this.manager).save(this, true);
+          ((RedisSessionManager)this.manager).save(this, false);
         } catch (IOException ex) {
           log.error("Error saving session on setAttribute (triggered by saveOnChange=true): " + ex.getMessage());
         }
-      } else {
-        changedAttributes.put(key, value);
       }
     }
   }
@@ -79,15 +176,14 @@ public class RedisSession extends StandardSession {
   @Override
   public void removeAttribute(String name) {
     super.removeAttribute(name);
+    recordChange(name, null);
     if (this.manager instanceof RedisSessionManager
         && ((RedisSessionManager)this.manager).getSaveOnChange()) {
       try {
-        ((RedisSessionManager)this.manager).save(this, true);
+        ((RedisSessionManager)this.manager).save(this, false);
       } catch (IOException ex) {
         log.error("Error saving session on setAttribute (triggered by saveOnChange=true): " + ex.getMessage());
       }
-    } else {
-      dirty = true;
     }
   }
 
@@ -105,8 +201,123 @@ public class RedisSession extends StandardSession {
     super.setPrincipal(principal);
   }
 
+  /**
+   * Writes the session's own fields (everything but its id and attributes)
+   * for storage modes that store attributes separately.
+   */
+  public void writeFieldsData(DataOutput out) throws IOException {
+    out.writeLong(creationTime);
+    out.writeLong(lastAccessedTime);
+    out.writeInt(maxInactiveInterval);
+    out.writeBoolean(isNew);
+    out.writeBoolean(isValid);
+    out.writeLong(thisAccessedTime);
+  }
+
+  public void readFieldsData(DataInput in) throws IOException {
+    creationTime = in.readLong();
+    lastAccessedTime = in.readLong();
+    maxInactiveInterval = in.readInt();
+    isNew = in.readBoolean();
+    isValid = in.readBoolean();
+    thisAccessedTime = in.readLong();
+  }
+
+  /**
+   * Sets an attribute that was loaded from Redis, bypassing listeners and
+   * dirty tracking.
+   */
+  public void putLoadedAttribute(String name, Object value) {
+    serializedAttributes.remove(name);
+    attributes.put(name, value);
+  }
+
+  /**
+   * Sets an attribute loaded from Redis in its serialized form; it will be
+   * deserialized the first time it is accessed.
+   */
+  public void putSerializedAttribute(String name, byte[] data) {
+    attributes.remove(name);
+    serializedAttributes.put(name, data);
+  }
+
+  /**
+   * @return the serialized form of an attribute that has not been accessed
+   *         since it was loaded, or null if it has been deserialized (and
+   *         therefore may have been modified.)
+   */
+  public byte[] getSerializedAttribute(String name) {
+    return serializedAttributes.get(name);
+  }
+
+  protected void deserializeAttribute(String name) {
+    if (serializedAttributes.isEmpty()) {
+      return;
+    }
+
+    synchronized (serializedAttributes) {
+      byte[] data = serializedAttributes.get(name);
+      if (data == null) {
+        return;
+      }
+
+      try {
+        Serializer serializer = ((RedisSessionManager)manager).getSerializer();
+        attributes.put(name, ((AttributeSerializer)serializer).deserializeAttribute(data));
+      } catch (IOException | ClassNotFoundException ex) {
+        log.error("Unable to deserialize session attribute " + name, ex);
+        throw new IllegalStateException("Unable to deserialize session attribute " + name, ex);
+      }
+      serializedAttributes.remove(name);
+    }
+  }
+
+  protected void deserializeAttributes() {
+    for (String name : serializedAttributes.keySet()) {
+      deserializeAttribute(name);
+    }
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    deserializeAttribute(name);
+    return super.getAttribute(name);
+  }
+
+  @Override
+  public Enumeration<String> getAttributeNames() {
+    Enumeration<String> names = super.getAttributeNames();
+    if (serializedAttributes.isEmpty()) {
+      return names;
+    }
+    return Collections.enumeration(Arrays.asList(keys()));
+  }
+
+  @Override
+  protected String[] keys() {
+    if (serializedAttributes.isEmpty()) {
+      return super.keys();
+    }
+    Set<String> names = new HashSet<>(attributes.keySet());
+    names.addAll(serializedAttributes.keySet());
+    return names.toArray(new String[names.size()]);
+  }
+
+  @Override
+  public void setAttribute(String name, Object value, boolean notify) {
+    deserializeAttribute(name);
+    super.setAttribute(name, value, notify);
+  }
+
+  @Override
+  protected void removeAttributeInternal(String name, boolean notify) {
+    deserializeAttribute(name);
+    super.removeAttributeInternal(name, notify);
+  }
+
   @Override
   public void writeObjectData(java.io.ObjectOutputStream out) throws IOException {
+    deserializeAttributes();
     super.writeObjectData(out);
     out.writeLong(this.getCreationTime());
   }
@@ -117,4 +328,14 @@ public class RedisSession extends StandardSession {
     this.setCreationTime(in.readLong());
   }
 
+  private static final class BinaryKey {
+    final String id;
+    final byte[] bytes;
+
+    BinaryKey(String id, String key) {
+      this.id = id;
+      this.bytes = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
 }
@@ -22,10 +22,18 @@ public class RedisSessionHandlerValve extends ValveBase {
 
   @Override
   public void invoke(Request request, Response response) throws IOException, ServletException {
+    manager.beginConnectionLease();
     try {
-      getNext().invoke(request, response);
+      manager.beforeRequest(request);
+      try {
+        getNext().invoke(request, response);
+      } finally {
+        manager.afterRequest(request);
+      }
     } finally {
-      manager.afterRequest();
+      // Also when the request continues asynchronously: the connection is
+      // only leased to this thread, and the next dispatch leases another.
+      manager.endConnectionLease();
     }
   }
 }
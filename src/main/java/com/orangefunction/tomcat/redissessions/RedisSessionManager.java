@@ -8,26 +8,53 @@ import org.apache.catalina.LifecycleState;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Valve;
 import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
 import org.apache.catalina.session.ManagerBase;
 
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.apache.commons.pool2.impl.BaseObjectPoolConfig;
 
 import redis.clients.util.Pool;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisSentinelPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.BinaryRedisPipeline;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
 
 import java.io.IOException;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -38,7 +65,9 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
   enum SessionPersistPolicy {
     DEFAULT,
     SAVE_ON_CHANGE,
-    ALWAYS_SAVE_AFTER_REQUEST;
+    ALWAYS_SAVE_AFTER_REQUEST,
+    MERGE_ON_CONFLICT,
+    WRITE_BEHIND;
 
     static SessionPersistPolicy fromName(String name) {
       for (SessionPersistPolicy policy : SessionPersistPolicy.values()) {
@@ -50,26 +79,73 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
     }
   }
 
+  enum SessionStorageMode {
+    STRING,
+    HASH;
+
+    static SessionStorageMode fromName(String name) {
+      for (SessionStorageMode mode : SessionStorageMode.values()) {
+        if (mode.name().equalsIgnoreCase(name)) {
+          return mode;
+        }
+      }
+      throw new IllegalArgumentException("Invalid session storage mode [" + name + "]. Must be one of " + Arrays.asList(SessionStorageMode.values())+ ".");
+    }
+  }
+
+  enum SessionStoreBackend {
+    POOLED,
+    MULTIPLEXED;
+
+    static SessionStoreBackend fromName(String name) {
+      for (SessionStoreBackend backend : SessionStoreBackend.values()) {
+        if (backend.name().equalsIgnoreCase(name)) {
+          return backend;
+        }
+      }
+      throw new IllegalArgumentException("Invalid session store backend [" + name + "]. Must be one of " + Arrays.asList(SessionStoreBackend.values())+ ".");
+    }
+  }
+
   protected byte[] NULL_SESSION = "null".getBytes();
 
+  /** Name of the request note holding the request's SessionRequestContext. */
+  static final String CONTEXT_NOTE = "com.orangefunction.tomcat.redissessions.SessionRequestContext";
+
+  static final byte[] SET_IF_NOT_EXISTS = "NX".getBytes();
+  static final byte[] SET_EXPIRE_SECONDS = "EX".getBytes();
+
+  /** Number of keys SCAN is asked to look at per call. */
+  private static final int SCAN_BATCH_SIZE = 1000;
+
   private final Log log = LogFactory.getLog(RedisSessionManager.class);
 
   protected String host = "localhost";
   protected int port = 6379;
   protected int database = 0;
+  protected String keyPrefix = "";
+  protected String expiryIndexKey = null;
+  private byte[] binaryExpiryIndexKey = null;
   protected String password = null;
   protected int timeout = Protocol.DEFAULT_TIMEOUT;
   protected String sentinelMaster = null;
   Set<String> sentinelSet = null;
+  Set<String> clusterNodeSet = null;
+  List<String> shardList = null;
+  Set<String> replicaNodeSet = null;
 
   protected Pool<Jedis> connectionPool;
+  protected RedisRouter router;
+
+  protected boolean readFromReplicas = false;
+  protected long readFromMasterAfterWriteMillis = 5000;
+  protected volatile RedisReplicaSet replicas;
   protected JedisPoolConfig connectionPoolConfig = new JedisPoolConfig();
 
   protected RedisSessionHandlerValve handlerValve;
-  protected ThreadLocal<RedisSession> currentSession = new ThreadLocal<>();
-  protected ThreadLocal<SessionSerializationMetadata> currentSessionSerializationMetadata = new ThreadLocal<>();
-  protected ThreadLocal<String> currentSessionId = new ThreadLocal<>();
-  protected ThreadLocal<Boolean> currentSessionIsPersisted = new ThreadLocal<>();
+  protected ThreadLocal<SessionRequestContext> currentContext = new ThreadLocal<>();
+  protected boolean leaseConnectionPerRequest = false;
+  protected final ThreadLocal<ConnectionLease> connectionLease = new ThreadLocal<>();
   protected Serializer serializer;
 
   protected static String name = "RedisSessionManager";
@@ -78,6 +154,169 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 
   protected EnumSet<SessionPersistPolicy> sessionPersistPoliciesSet = EnumSet.of(SessionPersistPolicy.DEFAULT);
 
+  protected SessionStorageMode storageMode = SessionStorageMode.STRING;
+  protected SessionStoreBackend storeBackend = SessionStoreBackend.POOLED;
+  protected int multiplexedConnections = 2;
+  protected volatile SessionStore sessionStore;
+
+  protected long expirationRefreshIntervalMillis = 0;
+  protected volatile ExpirationRefreshThrottle refreshThrottle;
+
+  protected int fallbackMaxEntries = 0;
+  protected int circuitBreakerFailureThreshold = 5;
+  protected long circuitBreakerRetryDelayMillis = 5000;
+  protected boolean lazyAttributeDeserialization = false;
+
+  protected int payloadCacheMaxEntries = 0;
+  protected long payloadCacheMaxBytes = 0;
+  protected long payloadCacheTimeToLiveMillis = 60000;
+  protected SessionPayloadCache payloadCache;
+
+  protected int compressionThreshold = 0;
+  protected int compressionLevel = Deflater.BEST_SPEED;
+  protected PayloadCompressor compressor;
+
+  protected int writeBehindThreads = 2;
+  protected int writeBehindQueueCapacity = 10000;
+  protected int writeBehindBatchSize = 100;
+  protected volatile WriteBehindQueue writeBehindQueue;
+
+  protected int attributeSizeWarningThreshold = 0;
+  protected int maxAttributeSize = 0;
+  protected int sessionSizeWarningThreshold = 0;
+
+  protected final SessionStoreMetrics metrics = new SessionStoreMetrics();
+  protected String metricsReporterClass = null;
+  protected SessionMetricsReporter metricsReporter;
+  private ObjectName metricsObjectName;
+
+  private static final long WRITE_BEHIND_SHUTDOWN_TIMEOUT_MILLIS = 30000;
+
+  /**
+   * Number of times a command is sent to another Redis Cluster node after
+   * a MOVED or ASK redirection before giving up.
+   */
+  private static final int MAX_CLUSTER_REDIRECTIONS = 5;
+
+  /**
+   * Returns 1 if the header of the stored session (see SessionDataHeader)
+   * still holds the version ARGV[1]; otherwise returns the stored session
+   * data (or nil if the session no longer exists.)
+   */
+  protected static final RedisScript GET_IF_VERSION_CHANGED_SCRIPT = new RedisScript(
+      "local header = redis.call('GETRANGE', KEYS[1], 0, 11)\n" +
+      "if string.sub(header, 1, 3) == 'RSM' and string.sub(header, 5, 12) == ARGV[1] then\n" +
+      "  return 1\n" +
+      "end\n" +
+      "return redis.call('GET', KEYS[1])\n");
+
+  /**
+   * Hash storage variant of GET_IF_VERSION_CHANGED_SCRIPT: returns 1 if the
+   * version field ARGV[2] still holds ARGV[1]; otherwise returns all fields
+   * of the stored session (an empty list if it no longer exists.)
+   */
+  protected static final RedisScript GET_IF_HASH_VERSION_CHANGED_SCRIPT = new RedisScript(
+      "if redis.call('HGET', KEYS[1], ARGV[2]) == ARGV[1] then\n" +
+      "  return 1\n" +
+      "end\n" +
+      "return redis.call('HGETALL', KEYS[1])\n");
+
+  /**
+   * Creates the session hash from the field/value pairs in ARGV[3..n] with
+   * the expiration ARGV[1] unless the key already exists, adding it to the
+   * expiry index KEYS[2] (if given) with the score ARGV[2]. Returns 1 if the
+   * session was created and 0 otherwise.
+   */
+  protected static final RedisScript CREATE_HASH_IF_NOT_EXISTS_SCRIPT = new RedisScript(
+      "if redis.call('EXISTS', KEYS[1]) == 1 then\n" +
+      "  return 0\n" +
+      "end\n" +
+      "redis.call('HMSET', KEYS[1], unpack(ARGV, 3))\n" +
+      "local expiration = tonumber(ARGV[1])\n" +
+      "if expiration > 0 then\n" +
+      "  redis.call('EXPIRE', KEYS[1], expiration)\n" +
+      "end\n" +
+      "if KEYS[2] then\n" +
+      "  redis.call('ZADD', KEYS[2], ARGV[2], KEYS[1])\n" +
+      "end\n" +
+      "return 1\n");
+
+  /**
+   * Writes the session hash only if it still exists: replaces the whole hash
+   * if ARGV[3] is 1, sets the ARGV[4] field/value pairs that follow and
+   * deletes the fields after them, then sets the expiration ARGV[1] and the
+   * score ARGV[2] in the expiry index KEYS[2] (if given.) Returns 1 if the
+   * session was written and 0 if it no longer exists.
+   */
+  protected static final RedisScript SET_HASH_IF_EXISTS_SCRIPT = new RedisScript(
+      "if redis.call('EXISTS', KEYS[1]) == 0 then\n" +
+      "  return 0\n" +
+      "end\n" +
+      "local last = 4 + tonumber(ARGV[4]) * 2\n" +
+      "if ARGV[3] == '1' then\n" +
+      "  redis.call('DEL', KEYS[1])\n" +
+      "end\n" +
+      "redis.call('HMSET', KEYS[1], unpack(ARGV, 5, last))\n" +
+      "if #ARGV > last then\n" +
+      "  redis.call('HDEL', KEYS[1], unpack(ARGV, last + 1))\n" +
+      "end\n" +
+      "local expiration = tonumber(ARGV[1])\n" +
+      "if expiration > 0 then\n" +
+      "  redis.call('EXPIRE', KEYS[1], expiration)\n" +
+      "end\n" +
+      "if KEYS[2] then\n" +
+      "  redis.call('ZADD', KEYS[2], ARGV[2], KEYS[1])\n" +
+      "end\n" +
+      "return 1\n");
+
+  /**
+   * Stores the session data (ARGV[2]) with the expiration ARGV[3] only if the
+   * header of the stored session still holds the version ARGV[1], sets its
+   * score in the expiry index KEYS[2] (if given) to ARGV[4] and returns 1;
+   * otherwise returns the conflicting data, or 0 if the session no longer
+   * exists.
+   */
+  protected static final RedisScript COMPARE_AND_SET_SCRIPT = new RedisScript(
+      "local header = redis.call('GETRANGE', KEYS[1], 0, 11)\n" +
+      "if header == '' then\n" +
+      "  return 0\n" +
+      "end\n" +
+      "if not (string.sub(header, 1, 3) == 'RSM' and string.sub(header, 5, 12) == ARGV[1]) then\n" +
+      "  return redis.call('GET', KEYS[1])\n" +
+      "end\n" +
+      "local expiration = tonumber(ARGV[3])\n" +
+      "if expiration > 0 then\n" +
+      "  redis.call('SETEX', KEYS[1], expiration, ARGV[2])\n" +
+      "else\n" +
+      "  redis.call('SET', KEYS[1], ARGV[2])\n" +
+      "end\n" +
+      "if KEYS[2] then\n" +
+      "  redis.call('ZADD', KEYS[2], ARGV[4], KEYS[1])\n" +
+      "end\n" +
+      "return 1\n");
+
+  /**
+   * Removes up to ARGV[2] entries whose score (expiration time) is at most
+   * ARGV[1] from the expiry index KEYS[1], and returns how many it removed.
+   */
+  protected static final RedisScript TRIM_EXPIRY_INDEX_SCRIPT = new RedisScript(
+      "local expired = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])\n" +
+      "if #expired > 0 then\n" +
+      "  redis.call('ZREM', KEYS[1], unpack(expired))\n" +
+      "end\n" +
+      "return #expired\n");
+
+  /**
+   * Maximum number of batches of expired entries removed from the expiry
+   * index per background run, so a large backlog is trimmed over several
+   * runs instead of blocking Redis.
+   */
+  private static final int MAX_EXPIRY_INDEX_TRIM_BATCHES = 10;
+
+  private static final byte[] POSITIVE_INFINITY = "+inf".getBytes();
+
+  protected static final int MAX_MERGE_ATTEMPTS = 5;
+
   /**
    * The lifecycle event support for this component.
    */
@@ -107,6 +346,43 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
     this.database = database;
   }
 
+  public String getKeyPrefix() {
+    return keyPrefix;
+  }
+
+  public void setKeyPrefix(String keyPrefix) {
+    this.keyPrefix = keyPrefix == null ? "" : keyPrefix;
+  }
+
+  /**
+   * @return the Redis key of a session: the key prefix followed by the id
+   */
+  protected String keyOf(String id) {
+    return keyPrefix + id;
+  }
+
+  public String getExpiryIndexKey() {
+    return expiryIndexKey;
+  }
+
+  /**
+   * @param expiryIndexKey the key of a sorted set of the session keys
+   *        scored by their expiration time, or null for no index
+   */
+  public void setExpiryIndexKey(String expiryIndexKey) {
+    if (expiryIndexKey == null || expiryIndexKey.isEmpty()) {
+      this.expiryIndexKey = null;
+      this.binaryExpiryIndexKey = null;
+    } else {
+      this.expiryIndexKey = expiryIndexKey;
+      this.binaryExpiryIndexKey = expiryIndexKey.getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  public boolean isExpiryIndexed() {
+    return expiryIndexKey != null;
+  }
+
   public int getTimeout() {
     return timeout;
   }
@@ -146,7 +422,14 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
       SessionPersistPolicy policy = SessionPersistPolicy.fromName(policyName);
       policySet.add(policy);
     }
+    if (policySet.contains(SessionPersistPolicy.WRITE_BEHIND) && policySet.contains(SessionPersistPolicy.MERGE_ON_CONFLICT)) {
+      throw new IllegalArgumentException("The WRITE_BEHIND and MERGE_ON_CONFLICT session persist policies can't be combined.");
+    }
     this.sessionPersistPoliciesSet = policySet;
+
+    if (getState().isAvailable()) {
+      initializeWriteBehindQueue();
+    }
   }
 
   public boolean getSaveOnChange() {
@@ -157,6 +440,95 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
     return this.sessionPersistPoliciesSet.contains(SessionPersistPolicy.ALWAYS_SAVE_AFTER_REQUEST);
   }
 
+  public boolean getMergeOnConflict() {
+    return this.sessionPersistPoliciesSet.contains(SessionPersistPolicy.MERGE_ON_CONFLICT);
+  }
+
+  public boolean getWriteBehind() {
+    return this.sessionPersistPoliciesSet.contains(SessionPersistPolicy.WRITE_BEHIND);
+  }
+
+  public String getStorageMode() {
+    return this.storageMode.name();
+  }
+
+  public void setStorageMode(String storageMode) {
+    this.storageMode = SessionStorageMode.fromName(storageMode);
+  }
+
+  public boolean isHashStorage() {
+    return this.storageMode == SessionStorageMode.HASH;
+  }
+
+  public String getStoreBackend() {
+    return this.storeBackend.name();
+  }
+
+  public void setStoreBackend(String storeBackend) {
+    this.storeBackend = SessionStoreBackend.fromName(storeBackend);
+  }
+
+  public int getMultiplexedConnections() {
+    return multiplexedConnections;
+  }
+
+  public void setMultiplexedConnections(int multiplexedConnections) {
+    this.multiplexedConnections = multiplexedConnections;
+  }
+
+  public long getExpirationRefreshIntervalMillis() {
+    return expirationRefreshIntervalMillis;
+  }
+
+  /**
+   * @param expirationRefreshIntervalMillis minimum time between two
+   *        refreshes of the expiration of an unchanged session by this
+   *        server, or 0 to refresh it after every request
+   */
+  public void setExpirationRefreshIntervalMillis(long expirationRefreshIntervalMillis) {
+    this.expirationRefreshIntervalMillis = expirationRefreshIntervalMillis;
+  }
+
+  public int getFallbackMaxEntries() {
+    return fallbackMaxEntries;
+  }
+
+  /**
+   * @param fallbackMaxEntries maximum number of sessions kept in memory
+   *        while Redis is unavailable, or 0 for no fallback
+   */
+  public void setFallbackMaxEntries(int fallbackMaxEntries) {
+    this.fallbackMaxEntries = fallbackMaxEntries;
+  }
+
+  public int getCircuitBreakerFailureThreshold() {
+    return circuitBreakerFailureThreshold;
+  }
+
+  public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+    this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+  }
+
+  public long getCircuitBreakerRetryDelayMillis() {
+    return circuitBreakerRetryDelayMillis;
+  }
+
+  public void setCircuitBreakerRetryDelayMillis(long circuitBreakerRetryDelayMillis) {
+    this.circuitBreakerRetryDelayMillis = circuitBreakerRetryDelayMillis;
+  }
+
+  public boolean getLazyAttributeDeserialization() {
+    return lazyAttributeDeserialization;
+  }
+
+  public void setLazyAttributeDeserialization(boolean lazyAttributeDeserialization) {
+    this.lazyAttributeDeserialization = lazyAttributeDeserialization;
+  }
+
+  public Serializer getSerializer() {
+    return serializer;
+  }
+
   public String getSentinels() {
     StringBuilder sentinels = new StringBuilder();
     for (Iterator<String> iter = this.sentinelSet.iterator(); iter.hasNext();) {
@@ -189,452 +561,1939 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
     this.sentinelMaster = master;
   }
 
-  @Override
-  public int getRejectedSessions() {
-    // Essentially do nothing.
-    return 0;
+  public String getClusterNodes() {
+    StringBuilder clusterNodes = new StringBuilder();
+    for (Iterator<String> iter = this.clusterNodeSet.iterator(); iter.hasNext();) {
+      clusterNodes.append(iter.next());
+      if (iter.hasNext()) {
+        clusterNodes.append(",");
+      }
+    }
+    return clusterNodes.toString();
   }
 
-  public void setRejectedSessions(int i) {
-    // Do nothing.
-  }
+  public void setClusterNodes(String clusterNodes) {
+    if (null == clusterNodes) {
+      clusterNodes = "";
+    }
 
-  protected Jedis acquireConnection() {
-    Jedis jedis = connectionPool.getResource();
+    String[] clusterNodeArray = clusterNodes.split(",");
+    this.clusterNodeSet = new HashSet<String>(Arrays.asList(clusterNodeArray));
+  }
 
-    if (getDatabase() != 0) {
-      jedis.select(getDatabase());
-    }
+  public Set<String> getClusterNodeSet() {
+    return this.clusterNodeSet;
+  }
 
-    return jedis;
+  public boolean isClusterMode() {
+    return this.clusterNodeSet != null && !this.getClusterNodes().trim().isEmpty();
   }
 
-  protected void returnConnection(Jedis jedis, Boolean error) {
-    if (error) {
-      connectionPool.returnBrokenResource(jedis);
-    } else {
-      connectionPool.returnResource(jedis);
+  public String getShards() {
+    StringBuilder shards = new StringBuilder();
+    for (Iterator<String> iter = this.shardList.iterator(); iter.hasNext();) {
+      shards.append(iter.next());
+      if (iter.hasNext()) {
+        shards.append(",");
+      }
     }
+    return shards.toString();
   }
 
-  protected void returnConnection(Jedis jedis) {
-    returnConnection(jedis, false);
+  public void setShards(String shards) {
+    if (null == shards) {
+      shards = "";
+    }
+
+    String[] shardArray = shards.split(",");
+    this.shardList = new ArrayList<String>(Arrays.asList(shardArray));
   }
 
-  @Override
-  public void load() throws ClassNotFoundException, IOException {
+  public List<String> getShardList() {
+    return this.shardList;
+  }
 
+  public boolean isSharded() {
+    return this.shardList != null && !this.getShards().trim().isEmpty();
   }
 
-  @Override
-  public void unload() throws IOException {
+  public int getPayloadCacheMaxEntries() {
+    return payloadCacheMaxEntries;
+  }
 
+  public void setPayloadCacheMaxEntries(int payloadCacheMaxEntries) {
+    this.payloadCacheMaxEntries = payloadCacheMaxEntries;
   }
 
-  /**
-   * Add a lifecycle event listener to this component.
-   *
-   * @param listener The listener to add
-   */
-  @Override
-  public void addLifecycleListener(LifecycleListener listener) {
-    lifecycle.addLifecycleListener(listener);
+  public long getPayloadCacheMaxBytes() {
+    return payloadCacheMaxBytes;
   }
 
-  /**
-   * Get the lifecycle listeners associated with this lifecycle. If this
-   * Lifecycle has no listeners registered, a zero-length array is returned.
-   */
-  @Override
-  public LifecycleListener[] findLifecycleListeners() {
-    return lifecycle.findLifecycleListeners();
+  public void setPayloadCacheMaxBytes(long payloadCacheMaxBytes) {
+    this.payloadCacheMaxBytes = payloadCacheMaxBytes;
   }
 
+  public long getPayloadCacheTimeToLiveMillis() {
+    return payloadCacheTimeToLiveMillis;
+  }
 
-  /**
-   * Remove a lifecycle event listener from this component.
-   *
-   * @param listener The listener to remove
-   */
-  @Override
-  public void removeLifecycleListener(LifecycleListener listener) {
-    lifecycle.removeLifecycleListener(listener);
+  public void setPayloadCacheTimeToLiveMillis(long payloadCacheTimeToLiveMillis) {
+    this.payloadCacheTimeToLiveMillis = payloadCacheTimeToLiveMillis;
   }
 
-  /**
-   * Start this component and implement the requirements
-   * of {@link org.apache.catalina.util.LifecycleBase#startInternal()}.
-   *
-   * @exception LifecycleException if this component detects a fatal error
-   *  that prevents this component from being used
-   */
-  @Override
-  protected synchronized void startInternal() throws LifecycleException {
-    super.startInternal();
+  public boolean getReadFromReplicas() {
+    return readFromReplicas;
+  }
 
-    setState(LifecycleState.STARTING);
+  public void setReadFromReplicas(boolean readFromReplicas) {
+    this.readFromReplicas = readFromReplicas;
+  }
 
-    Boolean attachedToValve = false;
-    for (Valve valve : getContainer().getPipeline().getValves()) {
-      if (valve instanceof RedisSessionHandlerValve) {
-        this.handlerValve = (RedisSessionHandlerValve) valve;
-        this.handlerValve.setRedisSessionManager(this);
-        log.info("Attached to RedisSessionHandlerValve");
-        attachedToValve = true;
-        break;
+  public String getReplicas() {
+    StringBuilder replicas = new StringBuilder();
+    for (Iterator<String> iter = this.replicaNodeSet.iterator(); iter.hasNext();) {
+      replicas.append(iter.next());
+      if (iter.hasNext()) {
+        replicas.append(",");
       }
     }
+    return replicas.toString();
+  }
 
-    if (!attachedToValve) {
-      String error = "Unable to attach to session handling valve; sessions cannot be saved after the request without the valve starting properly.";
-      log.fatal(error);
-      throw new LifecycleException(error);
+  public void setReplicas(String replicas) {
+    if (null == replicas) {
+      replicas = "";
     }
 
-    try {
-      initializeSerializer();
-    } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
-      log.fatal("Unable to load serializer", e);
-      throw new LifecycleException(e);
-    }
+    String[] replicaArray = replicas.split(",");
+    this.replicaNodeSet = new HashSet<String>(Arrays.asList(replicaArray));
+  }
 
-    log.info("Will expire sessions after " + getMaxInactiveInterval() + " seconds");
+  public Set<String> getReplicaNodeSet() {
+    return this.replicaNodeSet;
+  }
 
-    initializeDatabaseConnection();
+  public long getReadFromMasterAfterWriteMillis() {
+    return readFromMasterAfterWriteMillis;
+  }
 
-    setDistributable(true);
+  public void setReadFromMasterAfterWriteMillis(long readFromMasterAfterWriteMillis) {
+    this.readFromMasterAfterWriteMillis = readFromMasterAfterWriteMillis;
   }
 
+  public boolean getLeaseConnectionPerRequest() {
+    return leaseConnectionPerRequest;
+  }
 
   /**
-   * Stop this component and implement the requirements
-   * of {@link org.apache.catalina.util.LifecycleBase#stopInternal()}.
-   *
-   * @exception LifecycleException if this component detects a fatal error
-   *  that prevents this component from being used
+   * @param leaseConnectionPerRequest whether a request keeps the first
+   *        connection it borrows until the valve is done with it
    */
-  @Override
-  protected synchronized void stopInternal() throws LifecycleException {
-    if (log.isDebugEnabled()) {
-      log.debug("Stopping");
-    }
+  public void setLeaseConnectionPerRequest(boolean leaseConnectionPerRequest) {
+    this.leaseConnectionPerRequest = leaseConnectionPerRequest;
+  }
 
-    setState(LifecycleState.STOPPING);
+  public int getWriteBehindThreads() {
+    return writeBehindThreads;
+  }
 
-    try {
-      connectionPool.destroy();
-    } catch(Exception e) {
-      // Do nothing.
-    }
+  public void setWriteBehindThreads(int writeBehindThreads) {
+    this.writeBehindThreads = writeBehindThreads;
+  }
 
-    // Require a new random number generator if we are restarted
-    super.stopInternal();
+  public int getWriteBehindQueueCapacity() {
+    return writeBehindQueueCapacity;
   }
 
-  @Override
-  public Session createSession(String requestedSessionId) {
-    RedisSession session = null;
-    String sessionId = null;
-    String jvmRoute = getJvmRoute();
+  public void setWriteBehindQueueCapacity(int writeBehindQueueCapacity) {
+    this.writeBehindQueueCapacity = writeBehindQueueCapacity;
+  }
 
-    Boolean error = true;
-    Jedis jedis = null;
-    try {
-      jedis = acquireConnection();
+  public int getWriteBehindBatchSize() {
+    return writeBehindBatchSize;
+  }
 
-      // Ensure generation of a unique session identifier.
-      if (null != requestedSessionId) {
-        sessionId = sessionIdWithJvmRoute(requestedSessionId, jvmRoute);
-        if (jedis.setnx(sessionId.getBytes(), NULL_SESSION) == 0L) {
-          sessionId = null;
-        }
-      } else {
-        do {
-          sessionId = sessionIdWithJvmRoute(generateSessionId(), jvmRoute);
-        } while (jedis.setnx(sessionId.getBytes(), NULL_SESSION) == 0L); // 1 = key set; 0 = key already existed
-      }
+  public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+    this.writeBehindBatchSize = writeBehindBatchSize;
+  }
 
-      /* Even though the key is set in Redis, we are not going to flag
-         the current thread as having had the session persisted since
-         the session isn't actually serialized to Redis yet.
-         This ensures that the save(session) at the end of the request
-         will serialize the session into Redis with 'set' instead of 'setnx'. */
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
 
-      error = false;
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
 
-      if (null != sessionId) {
-        session = (RedisSession)createEmptySession();
-        session.setNew(true);
-        session.setValid(true);
-        session.setCreationTime(System.currentTimeMillis());
-        session.setMaxInactiveInterval(getMaxInactiveInterval());
-        session.setId(sessionId);
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  public int getAttributeSizeWarningThreshold() {
+    return attributeSizeWarningThreshold;
+  }
+
+  public void setAttributeSizeWarningThreshold(int attributeSizeWarningThreshold) {
+    this.attributeSizeWarningThreshold = attributeSizeWarningThreshold;
+  }
+
+  public int getMaxAttributeSize() {
+    return maxAttributeSize;
+  }
+
+  public void setMaxAttributeSize(int maxAttributeSize) {
+    this.maxAttributeSize = maxAttributeSize;
+  }
+
+  public int getSessionSizeWarningThreshold() {
+    return sessionSizeWarningThreshold;
+  }
+
+  public void setSessionSizeWarningThreshold(int sessionSizeWarningThreshold) {
+    this.sessionSizeWarningThreshold = sessionSizeWarningThreshold;
+  }
+
+  public SessionStoreMetrics getMetrics() {
+    return metrics;
+  }
+
+  public String getMetricsReporterClass() {
+    return metricsReporterClass;
+  }
+
+  public void setMetricsReporterClass(String metricsReporterClass) {
+    this.metricsReporterClass = metricsReporterClass;
+  }
+
+  @Override
+  public int getRejectedSessions() {
+    // Essentially do nothing.
+    return 0;
+  }
+
+  public void setRejectedSessions(int i) {
+    // Do nothing.
+  }
+
+  protected Jedis acquireConnection() {
+    if (router != null) {
+      throw new IllegalStateException("Sessions are spread over several Redis servers; use acquireConnection(key)");
+    }
+
+    // The pool selects the configured database when it creates a
+    // connection, so no SELECT is needed per borrow.
+    return connectionPool.getResource();
+  }
+
+  /**
+   * @return a connection to the server storing the key: the configured
+   *         server, the Redis Cluster master owning the key's hash slot or
+   *         the key's shard
+   */
+  protected Jedis acquireConnection(String key) {
+    ConnectionLease lease = connectionLease.get();
+    if (lease != null && lease.connection() != null) {
+      return lease.connection();
+    }
+
+    long start = System.nanoTime();
+    try {
+      if (router != null) {
+        return router.acquireConnection(key);
+      }
+      Jedis jedis = acquireConnection();
+      if (lease != null) {
+        lease.take(jedis);
+      }
+      return jedis;
+    } finally {
+      metrics.poolWait.recordMicrosSince(start);
+    }
+  }
+
+  /**
+   * Returns a connection to its pool, unless it's leased by the current
+   * request and still usable.
+   */
+  protected void returnConnection(Jedis jedis, Boolean error) {
+    ConnectionLease lease = connectionLease.get();
+    if (lease != null && lease.holds(jedis)) {
+      if (!error) {
+        return;
+      }
+      lease.release();
+    }
+
+    if (router != null) {
+      router.returnConnection(jedis, error);
+    } else if (error) {
+      connectionPool.returnBrokenResource(jedis);
+    } else {
+      connectionPool.returnResource(jedis);
+    }
+  }
+
+  protected void returnConnection(Jedis jedis) {
+    returnConnection(jedis, false);
+  }
+
+  /**
+   * Runs a command about a single key on a connection to the node storing
+   * it. In a Redis Cluster, a MOVED redirection updates the slot table and
+   * an ASK redirection (a slot being migrated) sends the command to the
+   * target node once; either way the command is run again.
+   */
+  protected <T> T execute(String key, RedisCommand<T> command) throws IOException {
+    HostAndPort askedNode = null;
+    for (int redirections = 0; ; redirections++) {
+      Jedis jedis = askedNode == null ? acquireConnection(key) : ((RedisClusterRouter)router).acquireConnection(askedNode);
+      Boolean error = true;
+      try {
+        if (askedNode != null) {
+          jedis.asking();
+        }
+        T result = command.execute(jedis);
+        error = jedis.getClient().isBroken();
+        return result;
+      } catch (JedisMovedDataException e) {
+        error = false;
+        if (!(router instanceof RedisClusterRouter) || redirections >= MAX_CLUSTER_REDIRECTIONS) {
+          throw e;
+        }
+        log.debug("Key " + key + " moved to " + e.getTargetNode());
+        ((RedisClusterRouter)router).slotMoved(e.getSlot(), e.getTargetNode());
+        askedNode = null;
+      } catch (JedisAskDataException e) {
+        error = false;
+        if (!(router instanceof RedisClusterRouter) || redirections >= MAX_CLUSTER_REDIRECTIONS) {
+          throw e;
+        }
+        log.debug("Key " + key + " is being migrated to " + e.getTargetNode());
+        askedNode = e.getTargetNode();
+      } catch (JedisConnectionException e) {
+        if (router instanceof RedisClusterRouter) {
+          ((RedisClusterRouter)router).nodeUnreachable();
+        }
+        throw e;
+      } finally {
+        returnConnection(jedis, error);
+      }
+    }
+  }
+
+  /**
+   * Runs a read-only command about a session on a replica, unless replica
+   * reads are disabled or this server wrote the session recently.
+   *
+   * @return the result, or null if the command has to be run on the master
+   *         instead (including when the replica doesn't have the session,
+   *         which may not have been replicated yet)
+   */
+  protected <T> T executeOnReplica(String id, RedisCommand<T> command) {
+    RedisReplicaSet replicaSet = replicas;
+    if (replicaSet == null || replicaSet.isRecentlyWritten(id)) {
+      return null;
+    }
+
+    Jedis jedis = null;
+    Boolean error = true;
+    try {
+      jedis = replicaSet.acquireConnection();
+      if (jedis == null) {
+        return null;
+      }
+      T result = command.execute(jedis);
+      error = false;
+      return result;
+    } catch (Exception e) {
+      log.warn("Unable to read session " + id + " from a Redis replica; reading it from the master: " + e.getMessage());
+      return null;
+    } finally {
+      if (jedis != null) {
+        replicaSet.returnConnection(jedis, error);
+      }
+    }
+  }
+
+  /**
+   * Records that this server wrote a session, so it is read from the
+   * master until replicas have caught up.
+   */
+  protected void recordWrite(String id) {
+    RedisReplicaSet replicaSet = replicas;
+    if (replicaSet != null) {
+      replicaSet.recordWrite(id);
+    }
+  }
+
+  @Override
+  public void load() throws ClassNotFoundException, IOException {
+
+  }
+
+  @Override
+  public void unload() throws IOException {
+
+  }
+
+  /**
+   * Add a lifecycle event listener to this component.
+   *
+   * @param listener The listener to add
+   */
+  @Override
+  public void addLifecycleListener(LifecycleListener listener) {
+    lifecycle.addLifecycleListener(listener);
+  }
+
+  /**
+   * Get the lifecycle listeners associated with this lifecycle. If this
+   * Lifecycle has no listeners registered, a zero-length array is returned.
+   */
+  @Override
+  public LifecycleListener[] findLifecycleListeners() {
+    return lifecycle.findLifecycleListeners();
+  }
+
+
+  /**
+   * Remove a lifecycle event listener from this component.
+   *
+   * @param listener The listener to remove
+   */
+  @Override
+  public void removeLifecycleListener(LifecycleListener listener) {
+    lifecycle.removeLifecycleListener(listener);
+  }
+
+  /**
+   * Start this component and implement the requirements
+   * of {@link org.apache.catalina.util.LifecycleBase#startInternal()}.
+   *
+   * @exception LifecycleException if this component detects a fatal error
+   *  that prevents this component from being used
+   */
+  @Override
+  protected synchronized void startInternal() throws LifecycleException {
+    super.startInternal();
+
+    setState(LifecycleState.STARTING);
+
+    Boolean attachedToValve = false;
+    for (Valve valve : getContainer().getPipeline().getValves()) {
+      if (valve instanceof RedisSessionHandlerValve) {
+        this.handlerValve = (RedisSessionHandlerValve) valve;
+        this.handlerValve.setRedisSessionManager(this);
+        log.info("Attached to RedisSessionHandlerValve");
+        attachedToValve = true;
+        break;
+      }
+    }
+
+    if (!attachedToValve) {
+      String error = "Unable to attach to session handling valve; sessions cannot be saved after the request without the valve starting properly.";
+      log.fatal(error);
+      throw new LifecycleException(error);
+    }
+
+    try {
+      initializeSerializer();
+    } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+      log.fatal("Unable to load serializer", e);
+      throw new LifecycleException(e);
+    }
+
+    if (getLazyAttributeDeserialization() && !(serializer instanceof AttributeSerializer)) {
+      String error = "Lazy attribute deserialization requires a serializer implementing " + AttributeSerializer.class.getName() + "; " + serializationStrategyClass + " does not.";
+      log.fatal(error);
+      throw new LifecycleException(error);
+    }
+
+    if (isHashStorage() && !(serializer instanceof AttributeSerializer)) {
+      String error = "Storage mode " + getStorageMode() + " requires a serializer implementing " + AttributeSerializer.class.getName() + "; " + serializationStrategyClass + " does not.";
+      log.fatal(error);
+      throw new LifecycleException(error);
+    }
+
+    if (getWriteBehind() && (isHashStorage() || getMergeOnConflict())) {
+      String error = "The WRITE_BEHIND persist policy requires the STRING storage mode and can't be combined with MERGE_ON_CONFLICT.";
+      log.fatal(error);
+      throw new LifecycleException(error);
+    }
+
+    log.info("Will expire sessions after " + getMaxInactiveInterval() + " seconds");
+
+    initializeDatabaseConnection();
+
+    if (isExpiryIndexed() && router != null) {
+      throw new LifecycleException("The expiry index isn't supported with `clusterNodes` or `shards`");
+    }
+
+    initializeSessionStore();
+
+    initializeReplicas();
+
+    initializePayloadCache();
+
+    initializeCompressor();
+
+    initializeRefreshThrottle();
+
+    initializeWriteBehindQueue();
+
+    initializeMetrics();
+
+    setDistributable(true);
+  }
+
+
+  /**
+   * Stop this component and implement the requirements
+   * of {@link org.apache.catalina.util.LifecycleBase#stopInternal()}.
+   *
+   * @exception LifecycleException if this component detects a fatal error
+   *  that prevents this component from being used
+   */
+  @Override
+  protected synchronized void stopInternal() throws LifecycleException {
+    if (log.isDebugEnabled()) {
+      log.debug("Stopping");
+    }
+
+    setState(LifecycleState.STOPPING);
+
+    shutdownWriteBehindQueue();
+
+    if (sessionStore != null) {
+      sessionStore.close();
+      sessionStore = null;
+    }
+
+    unregisterMetrics();
+
+    if (replicas != null) {
+      replicas.destroy();
+      replicas = null;
+    }
+
+    try {
+      if (router != null) {
+        router.destroy();
+        router = null;
+      } else {
+        connectionPool.destroy();
+      }
+    } catch(Exception e) {
+      // Do nothing.
+    }
+
+    if (payloadCache != null) {
+      payloadCache.clear();
+      payloadCache = null;
+    }
+
+    // Require a new random number generator if we are restarted
+    super.stopInternal();
+  }
+
+  @Override
+  public Session createSession(String requestedSessionId) {
+    RedisSession session = null;
+    String sessionId = null;
+    String jvmRoute = getJvmRoute();
+
+    try {
+      session = (RedisSession)createEmptySession();
+      session.setNew(true);
+      session.setValid(true);
+      session.setCreationTime(System.currentTimeMillis());
+      session.setMaxInactiveInterval(getMaxInactiveInterval());
+
+      // The attributes are serialized once, for both their hashes and the
+      // stored data.
+      Map<String, byte[]> serializedAttributes = serializedAttributesFrom(session);
+      SessionSerializationMetadata metadata = new SessionSerializationMetadata();
+      hashAttributesInto(metadata, session, serializedAttributes);
+      metadata.setVersion(metadata.nextVersion());
+
+      /* Ensure generation of a unique session identifier. The id is
+         reserved by writing the serialized session and its expiration
+         with a single 'SET NX EX', so creating a session costs one round
+         trip and never leaves a placeholder key without a TTL behind. */
+      if (null != requestedSessionId) {
+        sessionId = sessionIdWithJvmRoute(requestedSessionId, jvmRoute);
+        if (!createSessionData(session, sessionId, metadata, serializedAttributes)) {
+          sessionId = null;
+        }
+      } else {
+        while (true) {
+          sessionId = sessionIdWithJvmRoute(generateSessionId(), jvmRoute);
+          if (createSessionData(session, sessionId, metadata, serializedAttributes)) {
+            break;
+          }
+          metrics.sessionIdCollisions.incrementAndGet();
+        }
+      }
+
+      if (null != sessionId) {
+        session.resetDirtyTracking();
         session.tellNew();
+      } else {
+        session = null;
+      }
+
+      currentContext().set(sessionId, session, metadata, null != session);
+    } catch (IOException ex) {
+      log.error("Error saving newly created session: " + ex.getMessage());
+      currentContext().clear();
+      session = null;
+    }
+
+    return session;
+  }
+
+  private boolean createSessionData(final RedisSession session, final String sessionId, final SessionSerializationMetadata metadata,
+                                    final Map<String, byte[]> serializedAttributes) throws IOException {
+    if (!isHashStorage()) {
+      return createSessionData(null, session, sessionId, metadata, serializedAttributes);
+    }
+    return execute(keyOf(sessionId), new RedisCommand<Boolean>() {
+      @Override
+      public Boolean execute(Jedis jedis) throws IOException {
+        return createSessionData(jedis, session, sessionId, metadata, serializedAttributes);
+      }
+    });
+  }
+
+  /**
+   * Atomically reserves the session id and stores the serialized session
+   * along with its expiration.
+   *
+   * @param jedis a connection for the HASH storage mode; sessions stored as
+   *        strings are written through the session store
+   * @param serializedAttributes the result of serializedAttributesFrom(session)
+   * @return true if the session was written; false if the id is already taken
+   */
+  protected boolean createSessionData(Jedis jedis, RedisSession session, String sessionId, SessionSerializationMetadata metadata,
+                                      Map<String, byte[]> serializedAttributes) throws IOException {
+    session.setId(sessionId);
+
+    byte[] binaryKey = session.getBinaryKey();
+    int expiration = getMaxInactiveInterval();
+    int size;
+    byte[] data = null;
+    Map<byte[], byte[]> fields = null;
+
+    if (isHashStorage()) {
+      fields = sessionHashFrom(session, metadata, serializedAttributes, true);
+      List<byte[]> args = new ArrayList<>(fields.size() * 2 + 2);
+      args.add(String.valueOf(expiration).getBytes());
+      args.add(String.valueOf(expiryScore(expiration)).getBytes());
+      size = 0;
+      for (Map.Entry<byte[], byte[]> field : fields.entrySet()) {
+        args.add(field.getKey());
+        args.add(field.getValue());
+        size += field.getValue().length;
+      }
+      long start = System.nanoTime();
+      Object result;
+      try {
+        result = CREATE_HASH_IF_NOT_EXISTS_SCRIPT.execute(jedis, indexedKeys(binaryKey), args);
+      } finally {
+        metrics.setLatency.recordMicrosSince(start);
+      }
+      if (!Long.valueOf(1L).equals(result)) {
+        return false;
+      }
+    } else {
+      data = sessionDataFrom(session, metadata, serializedAttributes);
+      size = data.length;
+
+      if (!sessionStore.setIfAbsent(binaryKey, data, expiration)) {
+        return false;
+      }
+    }
+
+    recordWrite(sessionId);
+    recordRefresh(sessionId);
+    recordSizes(session, serializedAttributes, size);
+
+    if (payloadCache != null) {
+      payloadCache.put(sessionId, data, fields, metadata.getVersion(), size);
+    }
+    return true;
+  }
+
+  private String sessionIdWithJvmRoute(String sessionId, String jvmRoute) {
+    if (jvmRoute != null) {
+      String jvmRoutePrefix = '.' + jvmRoute;
+      return sessionId.endsWith(jvmRoutePrefix) ? sessionId : sessionId + jvmRoutePrefix;
+    }
+    return sessionId;
+  }
+
+  @Override
+  public Session createEmptySession() {
+    return new RedisSession(this);
+  }
+
+  @Override
+  public void add(Session session) {
+    try {
+      save(session);
+    } catch (IOException ex) {
+      log.warn("Unable to add to session manager store: " + ex.getMessage());
+      throw new RuntimeException("Unable to add to session manager store.", ex);
+    }
+  }
+
+  @Override
+  public Session findSession(String id) throws IOException {
+    RedisSession session = null;
+    SessionRequestContext context = currentContext();
+
+    if (null == id) {
+      context.clear();
+    } else if (context.isFor(id)) {
+      session = context.getSession();
+    } else {
+      DeserializedSessionContainer container;
+      WriteBehindQueue queue = writeBehindQueue;
+      WriteBehindQueue.PendingWrite pendingWrite = queue == null ? null : queue.pendingWrite(id);
+      if (pendingWrite != null && !pendingWrite.isExpirationOnly()) {
+        // Redis doesn't have this server's latest write of the session yet.
+        container = pendingWrite.removal ? null : sessionFromSerializedData(id, pendingWrite.data);
+      } else if (payloadCache != null) {
+        container = loadSessionThroughPayloadCache(id);
+      } else {
+        container = loadSession(id);
+      }
+      if (container != null) {
+        session = container.session;
+        context.set(id, session, container.metadata, true);
+      } else {
+        metrics.sessionsNotFound.incrementAndGet();
+        context.clear();
+      }
+    }
+
+    return session;
+  }
+
+  /**
+   * Deletes every session (every key starting with the key prefix), a
+   * batch of keys at a time, and the expiry index.
+   */
+  public void clear() {
+    scanSessionKeys(new SessionKeyBatchHandler() {
+      @Override
+      public void handle(Jedis jedis, List<String> keys) {
+        // One DEL per key, since the keys of a multi-key DEL must share a
+        // hash slot in a Redis Cluster.
+        Pipeline pipeline = jedis.pipelined();
+        for (String key : keys) {
+          pipeline.del(key);
+        }
+        pipeline.sync();
+      }
+    });
+
+    if (isExpiryIndexed()) {
+      try {
+        execute(expiryIndexKey, new RedisCommand<Long>() {
+          @Override
+          public Long execute(Jedis jedis) {
+            return jedis.del(binaryExpiryIndexKey);
+          }
+        });
+      } catch (IOException e) {
+        log.error("Error deleting the expiry index", e);
+      }
+    }
+
+    if (payloadCache != null) {
+      payloadCache.clear();
+    }
+  }
+
+  /**
+   * @return the number of sessions: the unexpired entries of the expiry
+   *         index if there is one, otherwise the keys starting with the key
+   *         prefix counted with SCAN (so a key may occasionally be counted
+   *         twice)
+   */
+  public int getSize() throws IOException {
+    if (isExpiryIndexed()) {
+      return execute(expiryIndexKey, new RedisCommand<Long>() {
+        @Override
+        public Long execute(Jedis jedis) {
+          return jedis.zcount(binaryExpiryIndexKey, String.valueOf(System.currentTimeMillis()).getBytes(), POSITIVE_INFINITY);
+        }
+      }).intValue();
+    }
+
+    final int[] size = new int[1];
+    scanSessionKeys(new SessionKeyBatchHandler() {
+      @Override
+      public void handle(Jedis jedis, List<String> keys) {
+        size[0] += keys.size();
+      }
+    });
+    return size[0];
+  }
+
+  /**
+   * @return the ids of the stored sessions (the keys starting with the key
+   *         prefix, without it)
+   */
+  public String[] keys() throws IOException {
+    if (isExpiryIndexed()) {
+      Set<String> ids = execute(expiryIndexKey, new RedisCommand<Set<String>>() {
+        @Override
+        public Set<String> execute(Jedis jedis) {
+          // ZSCAN costs the same for every batch, unlike paging by offset.
+          Set<String> ids = new HashSet<>();
+          ScanParams params = new ScanParams().count(SCAN_BATCH_SIZE);
+          long now = System.currentTimeMillis();
+          byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+          do {
+            ScanResult<Tuple> result = jedis.zscan(binaryExpiryIndexKey, cursor, params);
+            for (Tuple entry : result.getResult()) {
+              if (entry.getScore() >= now) {
+                ids.add(sessionIdOf(entry.getBinaryElement()));
+              }
+            }
+            cursor = result.getCursorAsBytes();
+          } while (!Arrays.equals(ScanParams.SCAN_POINTER_START_BINARY, cursor));
+          return ids;
+        }
+      });
+      return ids.toArray(new String[ids.size()]);
+    }
+
+    final Set<String> ids = new HashSet<>();
+    scanSessionKeys(new SessionKeyBatchHandler() {
+      @Override
+      public void handle(Jedis jedis, List<String> keys) {
+        for (String key : keys) {
+          ids.add(key.substring(keyPrefix.length()));
+        }
+      }
+    });
+    return ids.toArray(new String[ids.size()]);
+  }
+
+  /**
+   * Lists the ids of unexpired sessions a page at a time, in the order they
+   * expire in, from the expiry index. Each page starts right after the last
+   * session of the previous one, so every page costs the same however deep
+   * it is. A session whose expiration is refreshed while paging moves to a
+   * later page, so it may be listed twice.
+   *
+   * @param previous the previous page, or null for the first page
+   * @param count maximum number of ids to return
+   */
+  public SessionIdPage sessionIds(final SessionIdPage previous, final int count) throws IOException {
+    if (!isExpiryIndexed()) {
+      throw new IllegalStateException("Listing sessions a page at a time requires the `expiryIndexKey`");
+    }
+
+    List<Tuple> entries = execute(expiryIndexKey, new RedisCommand<List<Tuple>>() {
+      @Override
+      public List<Tuple> execute(Jedis jedis) {
+        byte[] now = String.valueOf(System.currentTimeMillis()).getBytes();
+        if (previous == null || previous.getLastKey() == null) {
+          return new ArrayList<>(jedis.zrangeByScoreWithScores(binaryExpiryIndexKey, now, POSITIVE_INFINITY, 0, count));
+        }
+
+        // The sessions expiring at the same time as the last one listed are
+        // ordered by key, and the later ones by score.
+        String lastScore = String.valueOf(previous.getLastScore());
+        Pipeline pipeline = jedis.pipelined();
+        Response<Set<Tuple>> sameScore = pipeline.zrangeByScoreWithScores(binaryExpiryIndexKey, lastScore.getBytes(), lastScore.getBytes());
+        Response<Set<Tuple>> later = pipeline.zrangeByScoreWithScores(binaryExpiryIndexKey, ("(" + lastScore).getBytes(), POSITIVE_INFINITY, 0, count);
+        pipeline.sync();
+        List<Tuple> entries = new ArrayList<>();
+        for (Tuple entry : sameScore.get()) {
+          if (compareKeys(entry.getBinaryElement(), previous.getLastKey()) > 0) {
+            entries.add(entry);
+          }
+        }
+        entries.addAll(later.get());
+        return entries;
+      }
+    });
+
+    long now = System.currentTimeMillis();
+    List<String> ids = new ArrayList<>(Math.min(count, entries.size()));
+    Tuple last = null;
+    for (Tuple entry : entries) {
+      if (ids.size() == count) {
+        break;
+      }
+      last = entry;
+      // The cursor may trail behind sessions that expired while paging.
+      if (entry.getScore() >= now) {
+        ids.add(sessionIdOf(entry.getBinaryElement()));
+      }
+    }
+    boolean isLast = entries.size() < count;
+    if (last == null) {
+      return previous != null ? new SessionIdPage(ids, isLast, previous.getLastScore(), previous.getLastKey())
+                              : new SessionIdPage(ids, isLast, 0, null);
+    }
+    return new SessionIdPage(ids, isLast, last.getScore(), last.getBinaryElement());
+  }
+
+  private String sessionIdOf(byte[] key) {
+    return new String(key, StandardCharsets.UTF_8).substring(keyPrefix.length());
+  }
+
+  /**
+   * Compares keys the way Redis orders the members of a sorted set with the
+   * same score: byte by byte, unsigned.
+   */
+  private static int compareKeys(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      int diff = (a[i] & 0xff) - (b[i] & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * @return the number of sessions in Redis if there is an expiry index to
+   *         count them cheaply, otherwise the number of sessions held by
+   *         the current requests of this server
+   */
+  @Override
+  public int getActiveSessions() {
+    if (!isExpiryIndexed()) {
+      return super.getActiveSessions();
+    }
+    try {
+      return getSize();
+    } catch (Exception e) {
+      log.warn("Unable to count the sessions in the expiry index: " + e.getMessage(), e);
+      return 0;
+    }
+  }
+
+  /**
+   * Receives the session keys found by SCAN a batch at a time, along with
+   * the connection to the server holding them.
+   */
+  protected interface SessionKeyBatchHandler {
+    void handle(Jedis jedis, List<String> keys);
+  }
+
+  /**
+   * Iterates over the keys starting with the key prefix on every Redis
+   * server (each Redis Cluster master or shard) with SCAN. Unlike KEYS,
+   * SCAN only blocks Redis for a batch at a time, and the keys never have
+   * to be held all at once. A key may be passed twice.
+   */
+  protected void scanSessionKeys(SessionKeyBatchHandler handler) {
+    ScanParams params = new ScanParams().match(globEscape(keyPrefix) + "*").count(SCAN_BATCH_SIZE);
+    for (Pool<Jedis> pool : connectionPools()) {
+      Jedis jedis = null;
+      Boolean error = true;
+      try {
+        jedis = acquireConnection(pool);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+          ScanResult<String> result = jedis.scan(cursor, params);
+          if (!result.getResult().isEmpty()) {
+            handler.handle(jedis, result.getResult());
+          }
+          cursor = result.getStringCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        error = false;
+      } finally {
+        if (jedis != null) {
+          returnConnection(pool, jedis, error);
+        }
+      }
+    }
+  }
+
+  /**
+   * Escapes the characters that are special in a Redis glob pattern.
+   */
+  private static String globEscape(String text) {
+    StringBuilder escaped = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+        escaped.append('\\');
       }
+      escaped.append(c);
+    }
+    return escaped.toString();
+  }
 
-      currentSession.set(session);
-      currentSessionId.set(sessionId);
-      currentSessionIsPersisted.set(false);
-      currentSessionSerializationMetadata.set(new SessionSerializationMetadata());
+  /**
+   * @return the pool of the configured server, or of every Redis Cluster
+   *         master or shard
+   */
+  private Collection<? extends Pool<Jedis>> connectionPools() {
+    if (router != null) {
+      return router.pools();
+    }
+    return Collections.singletonList(connectionPool);
+  }
+
+  private Jedis acquireConnection(Pool<Jedis> pool) {
+    return pool.getResource();
+  }
+
+  private void returnConnection(Pool<Jedis> pool, Jedis jedis, Boolean error) {
+    if (error) {
+      pool.returnBrokenResource(jedis);
+    } else {
+      pool.returnResource(jedis);
+    }
+  }
+
+  public byte[] loadSessionDataFromRedis(final String id) throws IOException {
+    if (log.isTraceEnabled()) {
+      log.trace("Attempting to load session " + id + " from Redis");
+    }
+
+    final byte[] binaryKey = keyOf(id).getBytes(StandardCharsets.UTF_8);
+    byte[] data = executeOnReplica(id, new RedisCommand<byte[]>() {
+      @Override
+      public byte[] execute(Jedis jedis) {
+        return getSessionData(jedis, binaryKey);
+      }
+    });
+    if (data == null) {
+      data = sessionStore.get(binaryKey);
+    }
+
+    if (data == null) {
+      if (log.isTraceEnabled()) {
+        log.trace("Session " + id + " not found in Redis");
+      }
+    }
+
+    return data;
+  }
+
+  public Map<byte[], byte[]> loadSessionHashFromRedis(final String id) throws IOException {
+    if (log.isTraceEnabled()) {
+      log.trace("Attempting to load session " + id + " from Redis");
+    }
 
-      if (null != session) {
+    final String key = keyOf(id);
+    RedisCommand<Map<byte[], byte[]>> hgetAll = new RedisCommand<Map<byte[], byte[]>>() {
+      @Override
+      public Map<byte[], byte[]> execute(Jedis jedis) {
+        long start = System.nanoTime();
         try {
-          error = saveInternal(jedis, session, true);
-        } catch (IOException ex) {
-          log.error("Error saving newly created session: " + ex.getMessage());
-          currentSession.set(null);
-          currentSessionId.set(null);
-          session = null;
+          return jedis.hgetAll(key.getBytes(StandardCharsets.UTF_8));
+        } finally {
+          metrics.getLatency.recordMicrosSince(start);
         }
       }
-    } finally {
-      if (jedis != null) {
-        returnConnection(jedis, error);
+    };
+    Map<byte[], byte[]> fields = executeOnReplica(id, hgetAll);
+    if (fields == null || fields.isEmpty()) {
+      fields = execute(key, hgetAll);
+    }
+
+    if (fields == null || fields.isEmpty()) {
+      if (log.isTraceEnabled()) {
+        log.trace("Session " + id + " not found in Redis");
       }
+      return null;
     }
 
-    return session;
+    return fields;
   }
 
-  private String sessionIdWithJvmRoute(String sessionId, String jvmRoute) {
-    if (jvmRoute != null) {
-      String jvmRoutePrefix = '.' + jvmRoute;
-      return sessionId.endsWith(jvmRoutePrefix) ? sessionId : sessionId + jvmRoutePrefix;
+  /**
+   * Loads and deserializes a session stored in the configured storage mode.
+   *
+   * @return the session or null if it does not exist
+   */
+  protected DeserializedSessionContainer loadSession(String id) throws IOException {
+    if (isHashStorage()) {
+      Map<byte[], byte[]> fields = loadSessionHashFromRedis(id);
+      return fields == null ? null : sessionFromHashData(id, fields);
     }
-    return sessionId;
-  }
 
-  @Override
-  public Session createEmptySession() {
-    return new RedisSession(this);
+    byte[] data = loadSessionDataFromRedis(id);
+    return data == null ? null : sessionFromSerializedData(id, data);
   }
 
-  @Override
-  public void add(Session session) {
-    try {
-      save(session);
-    } catch (IOException ex) {
-      log.warn("Unable to add to session manager store: " + ex.getMessage());
-      throw new RuntimeException("Unable to add to session manager store.", ex);
+  /**
+   * Loads a session, deserializing the payload cache's copy when Redis
+   * confirms it is still current. Either way this costs a single round
+   * trip, but only a changed session has to be transferred; every request
+   * still deserializes its own copy.
+   */
+  protected DeserializedSessionContainer loadSessionThroughPayloadCache(final String id) throws IOException {
+    SessionPayloadCache.Entry cached = payloadCache.get(id);
+    if (cached == null) {
+      DeserializedSessionContainer container;
+      if (isHashStorage()) {
+        Map<byte[], byte[]> fields = loadSessionHashFromRedis(id);
+        container = fields == null ? null : sessionFromHashData(id, fields);
+        if (container != null) {
+          payloadCache.put(id, null, fields, container.metadata.getVersion(), container.size);
+        }
+      } else {
+        byte[] data = loadSessionDataFromRedis(id);
+        container = data == null ? null : sessionFromSerializedData(id, data);
+        if (container != null) {
+          payloadCache.put(id, data, null, container.metadata.getVersion(), container.size);
+        }
+      }
+      return container;
+    }
+
+    if (log.isTraceEnabled()) {
+      log.trace("Validating cached session payload " + id + " against Redis");
+    }
+
+    final byte[] binaryKey = keyOf(id).getBytes(StandardCharsets.UTF_8);
+    final byte[] cachedVersion = SessionDataHeader.encodeVersion(cached.version);
+    RedisCommand<Object> getIfVersionChanged = new RedisCommand<Object>() {
+      @Override
+      public Object execute(Jedis jedis) {
+        long start = System.nanoTime();
+        try {
+          if (isHashStorage()) {
+            return GET_IF_HASH_VERSION_CHANGED_SCRIPT.execute(jedis,
+                                                              Collections.singletonList(binaryKey),
+                                                              Arrays.asList(cachedVersion, SessionHashFields.VERSION));
+          }
+          return GET_IF_VERSION_CHANGED_SCRIPT.execute(jedis,
+                                                       Collections.singletonList(binaryKey),
+                                                       Collections.singletonList(cachedVersion));
+        } finally {
+          metrics.getLatency.recordMicrosSince(start);
+        }
+      }
+    };
+    // The scripts only read, so replicas can run them too.
+    Object result = executeOnReplica(id, getIfVersionChanged);
+    if (result == null || (result instanceof List && ((List)result).isEmpty())) {
+      result = execute(keyOf(id), getIfVersionChanged);
+    }
+
+    DeserializedSessionContainer container = null;
+    if (result instanceof byte[]) {
+      container = sessionFromSerializedData(id, (byte[])result);
+      payloadCache.put(id, (byte[])result, null, container.metadata.getVersion(), container.size);
+    } else if (result instanceof List && !((List)result).isEmpty()) {
+      @SuppressWarnings("unchecked")
+      List<byte[]> fieldsAndValues = (List<byte[]>)result;
+      Map<byte[], byte[]> fields = new HashMap<>(fieldsAndValues.size());
+      for (int i = 0; i + 1 < fieldsAndValues.size(); i += 2) {
+        fields.put(fieldsAndValues.get(i), fieldsAndValues.get(i + 1));
+      }
+      container = sessionFromHashData(id, fields);
+      payloadCache.put(id, null, fields, container.metadata.getVersion(), container.size);
+    }
+
+    if (container != null) {
+      return container;
+    } else if (!(result instanceof Long)) {
+      if (log.isTraceEnabled()) {
+        log.trace("Session " + id + " not found in Redis");
+      }
+      payloadCache.remove(id);
+      return null;
     }
+
+    if (log.isTraceEnabled()) {
+      log.trace("Using cached session payload " + id);
+    }
+    // Every request gets its own copy of the session.
+    if (cached.data != null) {
+      return sessionFromSerializedData(id, cached.data);
+    }
+    return sessionFromHashData(id, cached.fields);
   }
 
-  @Override
-  public Session findSession(String id) throws IOException {
+  public DeserializedSessionContainer sessionFromSerializedData(String id, byte[] data) throws IOException {
+    if (log.isTraceEnabled()) {
+      log.trace("Deserializing session " + id + " from Redis");
+    }
+
+    if (Arrays.equals(NULL_SESSION, data)) {
+      log.error("Encountered serialized session " + id + " with data equal to NULL_SESSION. This is a bug.");
+      throw new IOException("Serialized session data was equal to NULL_SESSION");
+    }
+
+    long start = System.nanoTime();
     RedisSession session = null;
+    SessionSerializationMetadata metadata = new SessionSerializationMetadata();
+    int size = data.length;
 
-    if (null == id) {
-      currentSessionIsPersisted.set(false);
-      currentSession.set(null);
-      currentSessionSerializationMetadata.set(null);
-      currentSessionId.set(null);
-    } else if (id.equals(currentSessionId.get())) {
-      session = currentSession.get();
-    } else {
-      byte[] data = loadSessionDataFromRedis(id);
-      if (data != null) {
-        DeserializedSessionContainer container = sessionFromSerializedData(id, data);
-        session = container.session;
-        currentSession.set(session);
-        currentSessionSerializationMetadata.set(container.metadata);
-        currentSessionIsPersisted.set(true);
-        currentSessionId.set(id);
+    if (SessionDataHeader.isPresent(data)) {
+      data = PayloadCompressor.decompress(data, SessionDataHeader.LENGTH);
+    }
+
+    try {
+      session = (RedisSession)createEmptySession();
+
+      if (SessionDataHeader.formatOf(data) == SessionDataHeader.FORMAT_ATTRIBUTES) {
+        if (!(serializer instanceof AttributeSerializer)) {
+          throw new IOException("Session " + id + " was stored per attribute, which requires a serializer implementing " + AttributeSerializer.class.getName());
+        }
+        FramedSessionData.decodeInto(data, session, metadata, (AttributeSerializer)serializer, getLazyAttributeDeserialization());
       } else {
-        currentSessionIsPersisted.set(false);
-        currentSession.set(null);
-        currentSessionSerializationMetadata.set(null);
-        currentSessionId.set(null);
+        serializer.deserializeInto(SessionDataHeader.payloadOf(data), session, metadata);
+        metadata.setVersion(SessionDataHeader.versionOf(data));
       }
+
+      initializeLoadedSession(id, session);
+    } catch (ClassNotFoundException ex) {
+      log.fatal("Unable to deserialize into session", ex);
+      throw new IOException("Unable to deserialize into session", ex);
     }
 
-    return session;
+    metrics.deserializationTime.recordMicrosSince(start);
+    metrics.loadedSessionSize.record(size);
+    return new DeserializedSessionContainer(session, metadata, size);
   }
 
-  public void clear() {
-    Jedis jedis = null;
-    Boolean error = true;
+  public DeserializedSessionContainer sessionFromHashData(String id, Map<byte[], byte[]> fields) throws IOException {
+    if (log.isTraceEnabled()) {
+      log.trace("Deserializing session " + id + " from Redis hash");
+    }
+
+    long start = System.nanoTime();
+    AttributeSerializer attributeSerializer = (AttributeSerializer)serializer;
+    RedisSession session = null;
+    SessionSerializationMetadata metadata = new SessionSerializationMetadata();
+    Map<String, Long> attributeHashes = new TreeMap<>();
+    int size = 0;
+
     try {
-      jedis = acquireConnection();
-      jedis.flushDB();
-      error = false;
-    } finally {
-      if (jedis != null) {
-        returnConnection(jedis, error);
+      session = (RedisSession)createEmptySession();
+
+      for (Map.Entry<byte[], byte[]> field : fields.entrySet()) {
+        byte[] value = field.getValue();
+        size += value.length;
+
+        String attributeName = SessionHashFields.attributeName(field.getKey());
+        if (attributeName != null) {
+          value = PayloadCompressor.decompress(value, 0);
+          attributeHashes.put(attributeName, XXHash64.hash(value));
+          if (getLazyAttributeDeserialization()) {
+            session.putSerializedAttribute(attributeName, value);
+          } else {
+            session.putLoadedAttribute(attributeName, attributeSerializer.deserializeAttribute(value));
+          }
+        } else if (Arrays.equals(SessionHashFields.SESSION, field.getKey())) {
+          attributeSerializer.deserializeSessionFieldsInto(value, session);
+        } else if (Arrays.equals(SessionHashFields.VERSION, field.getKey())) {
+          metadata.setVersion(SessionHashFields.decodeVersion(value));
+        } else if (Arrays.equals(SessionHashFields.ATTRIBUTES_HASH, field.getKey())) {
+          metadata.setSessionAttributesHash(value);
+        }
+      }
+      metadata.setAttributeHashes(attributeHashes);
+
+      initializeLoadedSession(id, session);
+    } catch (ClassNotFoundException ex) {
+      log.fatal("Unable to deserialize into session", ex);
+      throw new IOException("Unable to deserialize into session", ex);
+    }
+
+    metrics.deserializationTime.recordMicrosSince(start);
+    metrics.loadedSessionSize.record(size);
+    return new DeserializedSessionContainer(session, metadata, size);
+  }
+
+  private void initializeLoadedSession(String id, RedisSession session) {
+    session.setId(id);
+    session.setNew(false);
+    session.setMaxInactiveInterval(getMaxInactiveInterval());
+    session.access();
+    session.setValid(true);
+    session.resetDirtyTracking();
+
+    if (log.isTraceEnabled()) {
+      log.trace("Session Contents [" + id + "]:");
+      Enumeration en = session.getAttributeNames();
+      while(en.hasMoreElements()) {
+        log.trace("  " + en.nextElement());
       }
     }
   }
 
-  public int getSize() throws IOException {
-    Jedis jedis = null;
-    Boolean error = true;
+  /**
+   * Serializes each attribute of the session on its own, reusing the
+   * stored bytes of attributes that were never deserialized. Attributes
+   * larger than maxAttributeSize are left out, so they are not stored.
+   *
+   * @return the serialized attributes ordered by name, or null if the
+   *         serializer can only serialize whole sessions
+   */
+  protected Map<String, byte[]> serializedAttributesFrom(RedisSession session) throws IOException {
+    if (!(serializer instanceof AttributeSerializer)) {
+      return null;
+    }
+
+    AttributeSerializer attributeSerializer = (AttributeSerializer)serializer;
+    Map<String, byte[]> serializedAttributes = new TreeMap<>();
+    for (Enumeration<String> names = session.getAttributeNames(); names.hasMoreElements();) {
+      String name = names.nextElement();
+      byte[] data = session.getSerializedAttribute(name);
+      if (data == null) {
+        data = attributeSerializer.serializeAttribute(session.getAttribute(name));
+      }
+      if (getMaxAttributeSize() > 0 && data.length > getMaxAttributeSize()) {
+        log.error("Not storing attribute [" + name + "] of session [" + session.getId() + "]: its " + data.length
+                  + " serialized bytes exceed maxAttributeSize (" + getMaxAttributeSize() + ")");
+        metrics.refusedAttributes.incrementAndGet();
+        metrics.largestAttributes.record(name, data.length, session.getId());
+        continue;
+      }
+      serializedAttributes.put(name, data);
+    }
+    return serializedAttributes;
+  }
+
+  /**
+   * Sets the attributes hash of the metadata and, when the attributes were
+   * serialized one by one, the hash of each attribute.
+   *
+   * @param serializedAttributes the result of serializedAttributesFrom(session)
+   */
+  protected void hashAttributesInto(SessionSerializationMetadata metadata, RedisSession session, Map<String, byte[]> serializedAttributes) throws IOException {
+    if (serializedAttributes == null) {
+      metadata.setAttributeHashes(null);
+      metadata.setSessionAttributesHash(serializer.attributesHashFrom(session));
+      return;
+    }
+
+    Map<String, Long> attributeHashes = new TreeMap<>();
+    for (Map.Entry<String, byte[]> attribute : serializedAttributes.entrySet()) {
+      attributeHashes.put(attribute.getKey(), XXHash64.hash(attribute.getValue()));
+    }
+    metadata.setAttributeHashes(attributeHashes);
+    metadata.setSessionAttributesHash(attributesHashFrom(attributeHashes));
+  }
+
+  /**
+   * Combines the hashes of the attributes (ordered by name) into the hash of
+   * the session's attributes.
+   */
+  protected static byte[] attributesHashFrom(Map<String, Long> attributeHashes) throws IOException {
+    ScratchBuffer buffer = ScratchBuffer.acquire();
     try {
-      jedis = acquireConnection();
-      int size = jedis.dbSize().intValue();
-      error = false;
-      return size;
+      DataOutputStream dos = buffer.dataOutput();
+      for (Map.Entry<String, Long> attribute : attributeHashes.entrySet()) {
+        dos.writeUTF(attribute.getKey());
+        dos.writeLong(attribute.getValue());
+      }
+      return ByteBuffer.allocate(8).putLong(XXHash64.hash(buffer.array(), 0, buffer.size(), 0)).array();
     } finally {
-      if (jedis != null) {
-        returnConnection(jedis, error);
+      buffer.release();
+    }
+  }
+
+  /**
+   * Records the attributes whose serialized bytes no longer match the
+   * stored ones as changed, so that attributes modified in place are
+   * written and merged like attributes set through setAttribute().
+   *
+   * @return false if the stored hash of each attribute isn't known, in
+   *         which case the changed attributes can't be told apart
+   */
+  protected boolean trackAttributesModifiedInPlace(RedisSession session, Map<String, Long> storedHashes, Map<String, Long> attributeHashes) {
+    if (storedHashes == null || attributeHashes == null) {
+      return false;
+    }
+
+    for (Map.Entry<String, Long> attribute : attributeHashes.entrySet()) {
+      if (!attribute.getValue().equals(storedHashes.get(attribute.getKey()))
+          && !session.getChangedAttributes().containsKey(attribute.getKey())) {
+        if (log.isTraceEnabled()) {
+          log.trace("Attribute [" + attribute.getKey() + "] of session [" + session.getId() + "] was modified in place");
+        }
+        session.trackAttributeChange(attribute.getKey());
+      }
+    }
+    for (String name : storedHashes.keySet()) {
+      if (!attributeHashes.containsKey(name) && !session.getChangedAttributes().containsKey(name)) {
+        session.trackAttributeChange(name);
       }
     }
+    return true;
   }
 
-  public String[] keys() throws IOException {
-    Jedis jedis = null;
-    Boolean error = true;
+  /**
+   * Whether sessions stored as strings are framed per attribute. Only the
+   * features that need the stored bytes of each attribute use the framed
+   * format, which earlier versions of the manager can't read; otherwise the
+   * serializer's own format is kept. Earlier versions only read that format
+   * when it isn't behind a header either (see isHeaderedStorage()).
+   */
+  protected boolean isFramedStorage() {
+    return serializer instanceof AttributeSerializer
+        && (getLazyAttributeDeserialization() || getMergeOnConflict() || getMaxAttributeSize() > 0);
+  }
+
+  /**
+   * Whether sessions stored as strings start with a SessionDataHeader. Only
+   * the features that read the version or the format of the stored data
+   * need it; without them the serializer's payload is stored alone, as
+   * earlier versions of the manager store and read it.
+   */
+  protected boolean isHeaderedStorage() {
+    return isFramedStorage() || getMergeOnConflict() || getPayloadCacheMaxEntries() > 0 || getCompressionThreshold() > 0;
+  }
+
+  /**
+   * Serializes the session for string storage, behind a header when
+   * isHeaderedStorage() and framing each attribute separately when
+   * isFramedStorage(). Everything after the header is compressed if
+   * compression is enabled and the data is large enough.
+   *
+   * @param serializedAttributes the result of serializedAttributesFrom(session)
+   */
+  protected byte[] sessionDataFrom(RedisSession session, SessionSerializationMetadata metadata, Map<String, byte[]> serializedAttributes) throws IOException {
+    byte[] data;
+    if (!isHeaderedStorage()) {
+      return serializer.serializeFrom(session, metadata);
+    } else if (serializedAttributes == null || !isFramedStorage()) {
+      data = SessionDataHeader.wrap(SessionDataHeader.FORMAT_SERIALIZER, metadata.getVersion(), serializer.serializeFrom(session, metadata));
+    } else {
+      byte[] sessionFields = ((AttributeSerializer)serializer).serializeSessionFields(session);
+      data = FramedSessionData.encode(metadata.getVersion(), sessionFields, metadata.getSessionAttributesHash(), serializedAttributes);
+    }
+    return compress(data, SessionDataHeader.LENGTH);
+  }
+
+  /**
+   * Builds the hash fields for a session: the metadata fields, and either
+   * every attribute or only the attributes changed since the last save.
+   *
+   * @param serializedAttributes the result of serializedAttributesFrom(session)
+   */
+  protected Map<byte[], byte[]> sessionHashFrom(RedisSession session, SessionSerializationMetadata metadata,
+                                                Map<String, byte[]> serializedAttributes, boolean allAttributes) throws IOException {
+    AttributeSerializer attributeSerializer = (AttributeSerializer)serializer;
+    Map<byte[], byte[]> fields = new HashMap<>();
+
+    fields.put(SessionHashFields.VERSION, SessionDataHeader.encodeVersion(metadata.getVersion()));
+    fields.put(SessionHashFields.ATTRIBUTES_HASH, metadata.getSessionAttributesHash());
+    fields.put(SessionHashFields.SESSION, attributeSerializer.serializeSessionFields(session));
+
+    if (allAttributes) {
+      for (Map.Entry<String, byte[]> attribute : serializedAttributes.entrySet()) {
+        fields.put(SessionHashFields.attributeField(attribute.getKey()), compress(attribute.getValue(), 0));
+      }
+    } else {
+      for (Map.Entry<String, Object> changed : session.getChangedAttributes().entrySet()) {
+        // Attributes missing from serializedAttributes are too large to be
+        // stored, and are deleted by setSessionHash().
+        byte[] value = serializedAttributes.get(changed.getKey());
+        if (changed.getValue() != null && value != null) {
+          fields.put(SessionHashFields.attributeField(changed.getKey()), compress(value, 0));
+        }
+      }
+    }
+
+    return fields;
+  }
+
+  /**
+   * Writes a session stored as a hash in a single round trip, unless it no
+   * longer exists in Redis (i.e., it was invalidated or expired since it
+   * was loaded), which would otherwise bring back a partial session. A full
+   * write replaces the whole hash; a partial write only sets the changed
+   * attributes and deletes the removed ones.
+   *
+   * @return the number of value bytes written, or -1 if the session no
+   *         longer exists
+   */
+  protected int setSessionHash(Jedis jedis, byte[] binaryKey, RedisSession session, SessionSerializationMetadata metadata,
+                               Map<String, byte[]> serializedAttributes, boolean fullWrite) throws IOException {
+    Map<byte[], byte[]> fields = sessionHashFrom(session, metadata, serializedAttributes, fullWrite);
+
+    List<byte[]> removedFields = new ArrayList<>();
+    if (!fullWrite) {
+      for (Map.Entry<String, Object> changed : session.getChangedAttributes().entrySet()) {
+        // Removed, or too large to be stored (so no older value is left.)
+        if (changed.getValue() == null || !serializedAttributes.containsKey(changed.getKey())) {
+          removedFields.add(SessionHashFields.attributeField(changed.getKey()));
+        }
+      }
+    }
+
+    int expiration = getMaxInactiveInterval();
+    List<byte[]> args = new ArrayList<>(fields.size() * 2 + removedFields.size() + 4);
+    args.add(String.valueOf(expiration).getBytes());
+    args.add(String.valueOf(expiryScore(expiration)).getBytes());
+    args.add((fullWrite ? "1" : "0").getBytes());
+    args.add(String.valueOf(fields.size()).getBytes());
+    int size = 0;
+    for (Map.Entry<byte[], byte[]> field : fields.entrySet()) {
+      args.add(field.getKey());
+      args.add(field.getValue());
+      size += field.getValue().length;
+    }
+    args.addAll(removedFields);
+
+    long start = System.nanoTime();
+    Object result;
     try {
-      jedis = acquireConnection();
-      Set<String> keySet = jedis.keys("*");
-      error = false;
-      return keySet.toArray(new String[keySet.size()]);
+      result = SET_HASH_IF_EXISTS_SCRIPT.execute(jedis, indexedKeys(binaryKey), args);
     } finally {
-      if (jedis != null) {
-        returnConnection(jedis, error);
-      }
+      metrics.setLatency.recordMicrosSince(start);
     }
+    return Long.valueOf(1L).equals(result) ? size : -1;
   }
 
-  public byte[] loadSessionDataFromRedis(String id) throws IOException {
-    Jedis jedis = null;
+  public void save(Session session) throws IOException {
+    save(session, false);
+  }
+
+  public void save(final Session session, final boolean forceSave) throws IOException {
+    // Sessions stored as strings are written through the session store (or
+    // queued, with write-behind) and need no connection of their own.
+    if (!isHashStorage() && !getMergeOnConflict()) {
+      saveInternal(null, session, forceSave);
+      return;
+    }
+
+    execute(keyOf(session.getId()), new RedisCommand<Boolean>() {
+      @Override
+      public Boolean execute(Jedis jedis) throws IOException {
+        return saveInternal(jedis, session, forceSave);
+      }
+    });
+  }
+
+  protected boolean saveInternal(Jedis jedis, Session session, boolean forceSave) throws IOException {
     Boolean error = true;
+    JedisRedirectionException redirection = null;
 
     try {
-      log.trace("Attempting to load session " + id + " from Redis");
+      RedisSession redisSession = (RedisSession)session;
 
-      jedis = acquireConnection();
-      byte[] data = jedis.get(id.getBytes());
-      error = false;
+      if (log.isTraceEnabled()) {
+        log.trace("Saving session " + session + " into Redis");
+        log.trace("Session Contents [" + redisSession.getId() + "]:");
+        Enumeration en = redisSession.getAttributeNames();
+        while(en.hasMoreElements()) {
+          log.trace("  " + en.nextElement());
+        }
+      }
 
-      if (data == null) {
-        log.trace("Session " + id + " not found in Redis");
+      byte[] binaryKey = redisSession.getBinaryKey();
+
+      SessionRequestContext context = currentContext();
+      if (context.getSession() != redisSession) {
+        // Not loaded through this request (e.g., saved by another thread),
+        // so nothing is known about the stored copy.
+        context = new SessionRequestContext();
+        context.set(redisSession.getId(), redisSession, new SessionSerializationMetadata(), false);
+      }
+      SessionSerializationMetadata sessionSerializationMetadata = context.getMetadata();
+      boolean isCurrentSessionPersisted = context.isPersisted();
+
+      // A single serialization pass serves both the change detection and
+      // the write.
+      Map<String, byte[]> serializedAttributes = serializedAttributesFrom(redisSession);
+      SessionSerializationMetadata updatedSerializationMetadata = new SessionSerializationMetadata();
+      hashAttributesInto(updatedSerializationMetadata, redisSession, serializedAttributes);
+
+      // Attributes modified in place are found by comparing the hash of
+      // each attribute with the stored one; without those hashes such a
+      // change can't be attributed and rewrites the whole session.
+      boolean untrackedChanges = redisSession.hasUntrackedChanges();
+      if (!Arrays.equals(sessionSerializationMetadata.getSessionAttributesHash(), updatedSerializationMetadata.getSessionAttributesHash())
+          && !trackAttributesModifiedInPlace(redisSession, sessionSerializationMetadata.getAttributeHashes(), updatedSerializationMetadata.getAttributeHashes())) {
+        untrackedChanges = true;
+      }
+
+      boolean saveNecessary = forceSave || untrackedChanges || redisSession.isDirty() || !isCurrentSessionPersisted;
+
+      // Only changes recorded per attribute can be merged or written
+      // partially. A forced save or a session not yet persisted by this
+      // request may hide other changes.
+      boolean onlyTrackedChanges = !forceSave && isCurrentSessionPersisted && !untrackedChanges;
+
+      if (saveNecessary) {
+        log.trace("Save was determined to be necessary");
+        metrics.necessarySaves.incrementAndGet();
+
+        int size;
+        byte[] data = null;
+
+        if (isHashStorage()) {
+          // Partially written hashes already merge with concurrent writes of
+          // other attributes, so no compare-and-set is needed.
+          updatedSerializationMetadata.setVersion(sessionSerializationMetadata.nextVersion());
+
+          if (log.isTraceEnabled()) {
+            log.trace("Setting session hash [" + redisSession.getId() + "] with expire timeout " + getMaxInactiveInterval());
+          }
+          size = setSessionHash(jedis, binaryKey, redisSession, updatedSerializationMetadata, serializedAttributes, !onlyTrackedChanges);
+          if (size < 0) {
+            // Invalidated by another request meanwhile.
+            redisSession.setValid(false);
+            context.clear();
+            if (payloadCache != null) {
+              payloadCache.remove(redisSession.getId());
+            }
+            error = false;
+            return error;
+          }
+          if (onlyTrackedChanges && payloadCache != null) {
+            size = Math.max(size, payloadCache.sizeOf(redisSession.getId()));
+          }
+        } else if (getMergeOnConflict() && sessionSerializationMetadata.getVersion() != 0) {
+          data = compareAndSetSessionData(jedis, binaryKey, redisSession, sessionSerializationMetadata, serializedAttributes,
+                                          updatedSerializationMetadata, onlyTrackedChanges);
+          if (data == null) {
+            // Invalidated by another request meanwhile.
+            redisSession.setValid(false);
+            context.clear();
+            if (payloadCache != null) {
+              payloadCache.remove(redisSession.getId());
+            }
+            error = false;
+            return error;
+          }
+          size = data.length;
+        } else {
+          updatedSerializationMetadata.setVersion(sessionSerializationMetadata.nextVersion());
+
+          data = sessionDataFrom(redisSession, updatedSerializationMetadata, serializedAttributes);
+
+          // SETEX writes the data and refreshes the expiration in a single
+          // round trip, so no separate EXPIRE is needed after a save.
+          if (log.isTraceEnabled()) {
+            log.trace("Setting session [" + redisSession.getId() + "] with expire timeout " + getMaxInactiveInterval());
+          }
+          WriteBehindQueue queue = writeBehindQueue;
+          if (getWriteBehind() && queue != null) {
+            queue.set(redisSession.getId(), data, getMaxInactiveInterval());
+          } else if (jedis != null) {
+            setSessionData(jedis, binaryKey, data);
+          } else {
+            sessionStore.set(binaryKey, data, getMaxInactiveInterval());
+          }
+          size = data.length;
+        }
+
+        if (payloadCache != null) {
+          payloadCache.put(redisSession.getId(), data, data == null ? sessionHashFrom(redisSession, updatedSerializationMetadata, serializedAttributes, true) : null,
+                        updatedSerializationMetadata.getVersion(), size);
+        }
+
+        recordWrite(redisSession.getId());
+        recordRefresh(redisSession.getId());
+        recordSizes(redisSession, serializedAttributes, size);
+
+        redisSession.resetDirtyTracking();
+        context.saved(updatedSerializationMetadata);
+      } else {
+        log.trace("Save was determined to be unnecessary");
+        metrics.unnecessarySaves.incrementAndGet();
+
+        ExpirationRefreshThrottle throttle = refreshThrottle;
+        if (throttle != null && throttle.isRecentlyRefreshed(redisSession.getId())) {
+          log.trace("Expiration was refreshed recently; not refreshing it again");
+          metrics.skippedExpirationRefreshes.incrementAndGet();
+        } else {
+          if (log.isTraceEnabled()) {
+            log.trace("Setting expire timeout on session [" + redisSession.getId() + "] to " + getMaxInactiveInterval());
+          }
+          WriteBehindQueue queue = writeBehindQueue;
+          if (getWriteBehind() && queue != null) {
+            queue.expire(redisSession.getId(), getMaxInactiveInterval());
+          } else if (jedis != null) {
+            expireSessionData(jedis, binaryKey);
+          } else {
+            sessionStore.expire(binaryKey, getMaxInactiveInterval());
+          }
+          recordRefresh(redisSession.getId());
+        }
       }
 
-      return data;
+      error = false;
+
+      return error;
+    } catch (JedisRedirectionException e) {
+      // Followed by execute(), which saves the session again on the node
+      // now holding it.
+      redirection = e;
+    } catch (IOException e) {
+      log.error(e.getMessage());
+
+      throw e;
     } finally {
-      if (jedis != null) {
-        returnConnection(jedis, error);
+      if (redirection != null) {
+        throw redirection;
       }
+      return error;
     }
   }
 
-  public DeserializedSessionContainer sessionFromSerializedData(String id, byte[] data) throws IOException {
-    log.trace("Deserializing session " + id + " from Redis");
-
-    if (Arrays.equals(NULL_SESSION, data)) {
-      log.error("Encountered serialized session " + id + " with data equal to NULL_SESSION. This is a bug.");
-      throw new IOException("Serialized session data was equal to NULL_SESSION");
-    }
+  /**
+   * Saves the session only if the stored copy is still at the version this
+   * request loaded. When another request saved the session in the meantime,
+   * the attributes changed by this request are applied on top of the stored
+   * copy and the save is retried against the stored version.
+   *
+   * Changes that are not tracked per attribute (attributes modified in
+   * place when the stored hash of each attribute is unknown, the manual
+   * dirty tracking key or a new principal) cannot be merged, so in that case
+   * (or after too many conflicts) this request's copy of the session
+   * overwrites the stored one.
+   *
+   * A session that no longer exists was invalidated (or expired) since
+   * this request loaded it, so it isn't written again.
+   *
+   * @param updatedMetadata holds the attributes hashes of the session and
+   *        receives the version written
+   * @return the data that was written, or null if the session no longer
+   *         exists
+   */
+  protected byte[] compareAndSetSessionData(Jedis jedis, byte[] binaryKey, RedisSession redisSession,
+                                            SessionSerializationMetadata expectedMetadata, Map<String, byte[]> serializedAttributes,
+                                            SessionSerializationMetadata updatedMetadata, boolean mergeable) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      updatedMetadata.setVersion(expectedMetadata.nextVersion());
 
-    RedisSession session = null;
-    SessionSerializationMetadata metadata = new SessionSerializationMetadata();
+      byte[] data = sessionDataFrom(redisSession, updatedMetadata, serializedAttributes);
 
-    try {
-      session = (RedisSession)createEmptySession();
+      if (log.isTraceEnabled()) {
+        log.trace("Setting session [" + redisSession.getId() + "] if still at version " + expectedMetadata.getVersion());
+      }
+      long start = System.nanoTime();
+      Object result;
+      try {
+        result = COMPARE_AND_SET_SCRIPT.execute(jedis,
+                                                indexedKeys(binaryKey),
+                                                Arrays.asList(SessionDataHeader.encodeVersion(expectedMetadata.getVersion()),
+                                                              data,
+                                                              String.valueOf(getMaxInactiveInterval()).getBytes(),
+                                                              String.valueOf(expiryScore(getMaxInactiveInterval())).getBytes()));
+      } finally {
+        metrics.setLatency.recordMicrosSince(start);
+      }
+      if (Long.valueOf(0L).equals(result)) {
+        log.debug("Session [" + redisSession.getId() + "] no longer exists; not saving it");
+        return null;
+      }
+      if (!(result instanceof byte[])) {
+        return data;
+      }
 
-      serializer.deserializeInto(data, session, metadata);
+      DeserializedSessionContainer stored = sessionFromSerializedData(redisSession.getId(), (byte[])result);
+      if (!mergeable || attempt >= MAX_MERGE_ATTEMPTS || stored.metadata.getVersion() == 0) {
+        log.warn("Session [" + redisSession.getId() + "] was modified concurrently and could not be merged; overwriting it");
+        setSessionData(jedis, binaryKey, data);
+        return data;
+      }
 
-      session.setId(id);
-      session.setNew(false);
-      session.setMaxInactiveInterval(getMaxInactiveInterval());
-      session.access();
-      session.setValid(true);
-      session.resetDirtyTracking();
+      log.debug("Session [" + redisSession.getId() + "] was modified concurrently; merging changed attributes");
+      redisSession.mergeAttributesFrom(stored.session);
+      expectedMetadata = stored.metadata;
+      serializedAttributes = serializedAttributesFrom(redisSession);
+      hashAttributesInto(updatedMetadata, redisSession, serializedAttributes);
+    }
+  }
 
-      if (log.isTraceEnabled()) {
-        log.trace("Session Contents [" + id + "]:");
-        Enumeration en = session.getAttributeNames();
-        while(en.hasMoreElements()) {
-          log.trace("  " + en.nextElement());
+  /**
+   * Records the size of a session just written and of its attributes, and
+   * warns about attributes and sessions above the warning thresholds.
+   *
+   * @param serializedAttributes the result of serializedAttributesFrom(session)
+   * @param size the number of bytes written
+   */
+  protected void recordSizes(RedisSession session, Map<String, byte[]> serializedAttributes, int size) {
+    metrics.savedSessionSize.record(size);
+
+    // The session's serialized size, which unlike the bytes written doesn't
+    // depend on compression or on writing only the changed attributes.
+    long sessionSize = size;
+    if (serializedAttributes != null) {
+      sessionSize = 0;
+      for (Map.Entry<String, byte[]> attribute : serializedAttributes.entrySet()) {
+        int attributeSize = attribute.getValue().length;
+        sessionSize += attributeSize;
+        metrics.largestAttributes.record(attribute.getKey(), attributeSize, session.getId());
+        if (getAttributeSizeWarningThreshold() > 0 && attributeSize > getAttributeSizeWarningThreshold()) {
+          log.warn("Attribute [" + attribute.getKey() + "] of session [" + session.getId() + "] is " + attributeSize + " bytes serialized");
         }
       }
-    } catch (ClassNotFoundException ex) {
-      log.fatal("Unable to deserialize into session", ex);
-      throw new IOException("Unable to deserialize into session", ex);
     }
 
-    return new DeserializedSessionContainer(session, metadata);
+    metrics.largestSessions.record(session.getId(), sessionSize, session.getId());
+    if (getSessionSizeWarningThreshold() > 0 && sessionSize > getSessionSizeWarningThreshold()) {
+      log.warn("Session [" + session.getId() + "] is " + sessionSize + " bytes serialized");
+    }
   }
 
-  public void save(Session session) throws IOException {
-    save(session, false);
+  /**
+   * Writes the serialized session and its expiration in one command. A
+   * non-positive max inactive interval means the session never expires,
+   * so the key is stored without a TTL.
+   */
+  protected void setSessionData(Jedis jedis, byte[] binaryKey, byte[] data) {
+    setSessionData(jedis, binaryKey, data, getMaxInactiveInterval());
   }
 
-  public void save(Session session, boolean forceSave) throws IOException {
-    Jedis jedis = null;
-    Boolean error = true;
-
+  protected void setSessionData(Jedis jedis, byte[] binaryKey, byte[] data, int expiration) {
+    long start = System.nanoTime();
     try {
-      jedis = acquireConnection();
-      error = saveInternal(jedis, session, forceSave);
-    } catch (IOException e) {
-      throw e;
-    } finally {
-      if (jedis != null) {
-        returnConnection(jedis, error);
+      if (isExpiryIndexed()) {
+        Pipeline pipeline = jedis.pipelined();
+        if (expiration > 0) {
+          pipeline.setex(binaryKey, expiration, data);
+        } else {
+          pipeline.set(binaryKey, data);
+        }
+        indexExpiration(pipeline, binaryKey, expiration);
+        syncChecked(pipeline);
+      } else if (expiration > 0) {
+        jedis.setex(binaryKey, expiration, data);
+      } else {
+        jedis.set(binaryKey, data);
       }
+    } finally {
+      metrics.setLatency.recordMicrosSince(start);
     }
   }
 
-  protected boolean saveInternal(Jedis jedis, Session session, boolean forceSave) throws IOException {
-    Boolean error = true;
-
-    try {
-      log.trace("Saving session " + session + " into Redis");
-
-      RedisSession redisSession = (RedisSession)session;
+  protected void expireSessionData(Jedis jedis, byte[] binaryKey) {
+    expireSessionData(jedis, binaryKey, getMaxInactiveInterval());
+  }
 
-      if (log.isTraceEnabled()) {
-        log.trace("Session Contents [" + redisSession.getId() + "]:");
-        Enumeration en = redisSession.getAttributeNames();
-        while(en.hasMoreElements()) {
-          log.trace("  " + en.nextElement());
+  protected void expireSessionData(Jedis jedis, byte[] binaryKey, int expiration) {
+    if (expiration > 0) {
+      long start = System.nanoTime();
+      try {
+        if (isExpiryIndexed()) {
+          Pipeline pipeline = jedis.pipelined();
+          pipeline.expire(binaryKey, expiration);
+          indexExpiration(pipeline, binaryKey, expiration);
+          syncChecked(pipeline);
+        } else {
+          jedis.expire(binaryKey, expiration);
         }
+      } finally {
+        metrics.expireLatency.recordMicrosSince(start);
       }
+    }
+  }
 
-      byte[] binaryId = redisSession.getId().getBytes();
-
-      Boolean isCurrentSessionPersisted;
-      SessionSerializationMetadata sessionSerializationMetadata = currentSessionSerializationMetadata.get();
-      byte[] originalSessionAttributesHash = sessionSerializationMetadata.getSessionAttributesHash();
-      byte[] sessionAttributesHash = null;
-      if (
-           forceSave
-           || redisSession.isDirty()
-           || null == (isCurrentSessionPersisted = this.currentSessionIsPersisted.get())
-            || !isCurrentSessionPersisted
-           || !Arrays.equals(originalSessionAttributesHash, (sessionAttributesHash = serializer.attributesHashFrom(redisSession)))
-         ) {
-
-        log.trace("Save was determined to be necessary");
+  protected byte[] getSessionData(Jedis jedis, byte[] binaryKey) {
+    long start = System.nanoTime();
+    try {
+      return jedis.get(binaryKey);
+    } finally {
+      metrics.getLatency.recordMicrosSince(start);
+    }
+  }
 
-        if (null == sessionAttributesHash) {
-          sessionAttributesHash = serializer.attributesHashFrom(redisSession);
+  /**
+   * Reserves the key by writing the serialized session and its expiration
+   * with a single 'SET NX EX', so creating a session costs one round trip
+   * and never leaves a placeholder key without a TTL behind.
+   *
+   * @return true if the session was written; false if the key is taken
+   */
+  protected boolean setSessionDataIfAbsent(Jedis jedis, byte[] binaryKey, byte[] data, int expiration) {
+    long start = System.nanoTime();
+    String result;
+    try {
+      if (expiration > 0 && isExpiryIndexed()) {
+        // Indexed in the same round trip. Should the id be taken, this
+        // only refreshes the index entry of the existing session.
+        Pipeline pipeline = jedis.pipelined();
+        @SuppressWarnings("unchecked")
+        Response<String> response = pipeline.set(binaryKey, data, SET_IF_NOT_EXISTS, SET_EXPIRE_SECONDS, expiration);
+        indexExpiration(pipeline, binaryKey, expiration);
+        syncChecked(pipeline);
+        result = response.get();
+      } else if (expiration > 0) {
+        result = jedis.set(binaryKey, data, SET_IF_NOT_EXISTS, SET_EXPIRE_SECONDS, expiration);
+      } else {
+        result = jedis.set(binaryKey, data, SET_IF_NOT_EXISTS);
+        if (result != null && isExpiryIndexed()) {
+          jedis.zadd(binaryExpiryIndexKey, expiryScore(expiration), binaryKey);
         }
+      }
+    } finally {
+      metrics.setLatency.recordMicrosSince(start);
+    }
+    return null != result; // "OK" = key set; nil = key already existed
+  }
 
-        SessionSerializationMetadata updatedSerializationMetadata = new SessionSerializationMetadata();
-        updatedSerializationMetadata.setSessionAttributesHash(sessionAttributesHash);
-
-        jedis.set(binaryId, serializer.serializeFrom(redisSession, updatedSerializationMetadata));
-
-        redisSession.resetDirtyTracking();
-        currentSessionSerializationMetadata.set(updatedSerializationMetadata);
-        currentSessionIsPersisted.set(true);
-      } else {
-        log.trace("Save was determined to be unnecessary");
+  protected long deleteSessionData(Jedis jedis, byte[] binaryKey) {
+    long start = System.nanoTime();
+    try {
+      if (!isExpiryIndexed()) {
+        return jedis.del(binaryKey);
       }
+      Pipeline pipeline = jedis.pipelined();
+      Response<Long> deleted = pipeline.del(binaryKey);
+      unindex(pipeline, binaryKey);
+      syncChecked(pipeline);
+      return deleted.get();
+    } finally {
+      metrics.delLatency.recordMicrosSince(start);
+    }
+  }
 
-      log.trace("Setting expire timeout on session [" + redisSession.getId() + "] to " + getMaxInactiveInterval());
-      jedis.expire(binaryId, getMaxInactiveInterval());
+  /**
+   * @return the score of a session in the expiry index: the time (in
+   *         milliseconds) it expires at, if it's saved or touched now
+   */
+  protected double expiryScore(int expiration) {
+    return expiration > 0 ? System.currentTimeMillis() + expiration * 1000L : Double.MAX_VALUE;
+  }
 
-      error = false;
+  /**
+   * Queues the update of the session's entry in the expiry index on the
+   * pipeline (or transaction) writing it, so it costs no round trip.
+   */
+  protected void indexExpiration(BinaryRedisPipeline pipeline, byte[] binaryKey, int expiration) {
+    pipeline.zadd(binaryExpiryIndexKey, expiryScore(expiration), binaryKey);
+  }
 
-      return error;
-    } catch (IOException e) {
-      log.error(e.getMessage());
+  protected void unindex(BinaryRedisPipeline pipeline, byte[] binaryKey) {
+    pipeline.zrem(binaryExpiryIndexKey, binaryKey);
+  }
 
-      throw e;
-    } finally {
-      return error;
+  /**
+   * @return the keys of a script updating the session: its key, followed
+   *         by the key of the expiry index if there is one
+   */
+  private List<byte[]> indexedKeys(byte[] binaryKey) {
+    return isExpiryIndexed() ? Arrays.asList(binaryKey, binaryExpiryIndexKey) : Collections.singletonList(binaryKey);
+  }
+
+  /**
+   * Sends the pipelined commands, throwing the error of any that failed
+   * (which a pipeline otherwise only returns.)
+   */
+  private static void syncChecked(Pipeline pipeline) {
+    for (Object result : pipeline.syncAndReturnAll()) {
+      if (result instanceof JedisDataException) {
+        throw (JedisDataException)result;
+      }
     }
   }
 
@@ -645,62 +2504,293 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 
   @Override
   public void remove(Session session, boolean update) {
-    Jedis jedis = null;
-    Boolean error = true;
+    final String id = session.getId();
 
-    log.trace("Removing session ID : " + session.getId());
+    if (log.isTraceEnabled()) {
+      log.trace("Removing session ID : " + session.getId());
+    }
+
+    if (payloadCache != null) {
+      payloadCache.remove(session.getId());
+    }
+    recordWrite(id);
+    ExpirationRefreshThrottle throttle = refreshThrottle;
+    if (throttle != null) {
+      throttle.forget(id);
+    }
 
     try {
-      jedis = acquireConnection();
-      jedis.del(session.getId());
-      error = false;
-    } finally {
-      if (jedis != null) {
-        returnConnection(jedis, error);
+      WriteBehindQueue queue = writeBehindQueue;
+      if (queue != null) {
+        // Queued behind any pending write of the session, so it can't be
+        // resurrected by one.
+        queue.remove(session.getId());
+        return;
       }
+
+      sessionStore.del(keyOf(id).getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      log.error("Error removing session " + session.getId(), e);
+    }
+  }
+
+  /**
+   * @return the context of the request processed by the current thread,
+   *         bound by the valve (or, outside of a request, by the first call)
+   */
+  protected SessionRequestContext currentContext() {
+    SessionRequestContext context = currentContext.get();
+    if (context == null) {
+      context = new SessionRequestContext();
+      currentContext.set(context);
+    }
+    return context;
+  }
+
+  /**
+   * Starts leasing a connection to the current thread, if enabled, until
+   * {@link #endConnectionLease()}. Only a single Redis server (or Sentinel
+   * master) is leased from; with Redis Cluster or shards each command
+   * still borrows a connection to its node.
+   */
+  public void beginConnectionLease() {
+    if (getLeaseConnectionPerRequest() && router == null && connectionLease.get() == null) {
+      connectionLease.set(new ConnectionLease());
+    }
+  }
+
+  /**
+   * Returns the connection leased to the current thread (if one was taken)
+   * to the pool.
+   */
+  public void endConnectionLease() {
+    ConnectionLease lease = connectionLease.get();
+    if (lease == null) {
+      return;
+    }
+    connectionLease.remove();
+
+    Jedis jedis = lease.release();
+    if (jedis != null) {
+      returnConnection(jedis, jedis.getClient().isBroken());
+    }
+  }
+
+  /**
+   * Binds the request's context to the current thread. A request dispatched
+   * again after going asynchronous gets back the context it had.
+   */
+  public void beforeRequest(Request request) {
+    SessionRequestContext context = (SessionRequestContext)request.getNote(CONTEXT_NOTE);
+    if (context == null) {
+      // Keep a session the container already looked up on this thread
+      // before the valve ran.
+      context = currentContext();
+      request.setNote(CONTEXT_NOTE, context);
+    } else {
+      currentContext.set(context);
     }
   }
 
+  public void afterRequest(Request request) {
+    afterRequest(request.isAsyncStarted());
+  }
+
   public void afterRequest() {
-    RedisSession redisSession = currentSession.get();
+    afterRequest(false);
+  }
+
+  /**
+   * Saves (or removes) the request's session and unbinds the context from
+   * the current thread.
+   *
+   * @param asyncStarted if the request continues asynchronously, in which
+   *        case the context is kept for the next dispatch
+   */
+  private void afterRequest(boolean asyncStarted) {
+    SessionRequestContext context = currentContext.get();
+    if (context == null) {
+      return;
+    }
+    currentContext.remove();
+
+    RedisSession redisSession = context.getSession();
     if (redisSession != null) {
       try {
         if (redisSession.isValid()) {
-          log.trace("Request with session completed, saving session " + redisSession.getId());
+          if (log.isTraceEnabled()) {
+            log.trace("Request with session completed, saving session " + redisSession.getId());
+          }
           save(redisSession, getAlwaysSaveAfterRequest());
         } else {
-          log.trace("HTTP Session has been invalidated, removing :" + redisSession.getId());
+          if (log.isTraceEnabled()) {
+            log.trace("HTTP Session has been invalidated, removing :" + redisSession.getId());
+          }
           remove(redisSession);
+          context.clear();
         }
       } catch (Exception e) {
         log.error("Error storing/removing session", e);
+        if (payloadCache != null) {
+          payloadCache.remove(redisSession.getId());
+        }
+        context.clear();
       } finally {
-        currentSession.remove();
-        currentSessionId.remove();
-        currentSessionIsPersisted.remove();
-        log.trace("Session removed from ThreadLocal :" + redisSession.getIdInternal());
+        if (log.isTraceEnabled()) {
+          log.trace("Session removed from ThreadLocal :" + redisSession.getIdInternal());
+        }
       }
     }
+
+    if (!asyncStarted) {
+      context.clear();
+    }
+  }
+
+  /**
+   * Writes the sessions kept in memory while Redis was unavailable back to
+   * Redis on every run, rather than only on those expiring sessions.
+   */
+  @Override
+  public void backgroundProcess() {
+    SessionStore store = sessionStore;
+    if (store instanceof FallbackSessionStore) {
+      ((FallbackSessionStore)store).reconcile();
+    }
+    super.backgroundProcess();
   }
 
   @Override
   public void processExpires() {
     // We are going to use Redis's ability to expire keys for session expiration.
 
-    // Do nothing.
+    RedisReplicaSet replicaSet = replicas;
+    if (replicaSet != null) {
+      replicaSet.expireRecentWrites();
+      if (getReplicaNodeSet() == null) {
+        updateReplicasFromSentinel(replicaSet);
+      }
+    }
+
+    ExpirationRefreshThrottle throttle = refreshThrottle;
+    if (throttle != null) {
+      throttle.expireRefreshes();
+    }
+
+    if (isExpiryIndexed()) {
+      trimExpiryIndex();
+    }
+
+    SessionMetricsReporter reporter = metricsReporter;
+    if (reporter != null) {
+      try {
+        reporter.report(metrics);
+      } catch (RuntimeException e) {
+        log.warn("Unable to report session metrics: " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Removes the entries of expired sessions from the expiry index (Redis
+   * expires the sessions themselves), a batch at a time.
+   */
+  protected void trimExpiryIndex() {
+    try {
+      final List<byte[]> args = Arrays.asList(String.valueOf(System.currentTimeMillis()).getBytes(),
+                                              String.valueOf(SCAN_BATCH_SIZE).getBytes());
+      for (int batch = 0; batch < MAX_EXPIRY_INDEX_TRIM_BATCHES; batch++) {
+        Long removed = execute(expiryIndexKey, new RedisCommand<Long>() {
+          @Override
+          public Long execute(Jedis jedis) {
+            return (Long)TRIM_EXPIRY_INDEX_SCRIPT.execute(jedis, Collections.singletonList(binaryExpiryIndexKey), args);
+          }
+        });
+        if (removed == null || removed < SCAN_BATCH_SIZE) {
+          break;
+        }
+      }
+    } catch (Exception e) {
+      log.warn("Unable to remove expired sessions from the expiry index: " + e.getMessage(), e);
+    }
+  }
+
+  private void initializeReplicas() throws LifecycleException {
+    if (!getReadFromReplicas()) {
+      replicas = null;
+      return;
+    }
+
+    if (router != null) {
+      throw new LifecycleException("Reading from replicas isn't supported with `clusterNodes` or `shards`");
+    }
+
+    RedisReplicaSet replicaSet = new RedisReplicaSet(this.connectionPoolConfig, getTimeout(), getPassword(), getDatabase(), getReadFromMasterAfterWriteMillis());
+    if (getReplicaNodeSet() != null) {
+      List<HostAndPort> nodes = new ArrayList<>();
+      for (String replica : getReplicaNodeSet()) {
+        String[] hostAndPort = replica.trim().split(":");
+        nodes.add(new HostAndPort(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+      }
+      replicaSet.setReplicas(nodes);
+    } else if (getSentinelMaster() != null) {
+      updateReplicasFromSentinel(replicaSet);
+    } else {
+      throw new LifecycleException("Reading from replicas requires either `replicas` or `sentinelMaster` and `sentinels` to be configured");
+    }
+    replicas = replicaSet;
+  }
+
+  /**
+   * Asks the sentinels (in turn, until one answers) for the replicas of the
+   * master; called again periodically to follow failovers and new replicas.
+   */
+  private void updateReplicasFromSentinel(RedisReplicaSet replicaSet) {
+    for (String sentinel : getSentinelSet()) {
+      String[] hostAndPort = sentinel.trim().split(":");
+      Jedis jedis = new Jedis(hostAndPort[0], Integer.parseInt(hostAndPort[1]), getTimeout());
+      try {
+        replicaSet.setReplicasFromSentinel(jedis.sentinelSlaves(getSentinelMaster()));
+        return;
+      } catch (Exception e) {
+        log.warn("Unable to read the replicas of " + getSentinelMaster() + " from sentinel " + sentinel + ": " + e.getMessage());
+      } finally {
+        jedis.close();
+      }
+    }
+    log.error("Unable to read the replicas of " + getSentinelMaster() + " from any sentinel");
   }
 
   private void initializeDatabaseConnection() throws LifecycleException {
     try {
-      if (getSentinelMaster() != null) {
+      if (isClusterMode()) {
+        if (getDatabase() != 0) {
+          log.warn("Redis Cluster only supports database 0; ignoring database " + getDatabase());
+        }
+        Set<HostAndPort> seedNodes = new HashSet<>();
+        for (String node : getClusterNodeSet()) {
+          String[] hostAndPort = node.trim().split(":");
+          seedNodes.add(new HostAndPort(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+        }
+        RedisClusterRouter clusterRouter = new RedisClusterRouter(seedNodes, this.connectionPoolConfig, getTimeout(), getPassword());
+        clusterRouter.refresh(true);
+        router = clusterRouter;
+      } else if (isSharded()) {
+        List<HostAndPort> shards = new ArrayList<>();
+        for (String shard : getShardList()) {
+          String[] hostAndPort = shard.trim().split(":");
+          shards.add(new HostAndPort(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+        }
+        router = new RedisShardRouter(shards, this.connectionPoolConfig, getTimeout(), getPassword(), getDatabase());
+      } else if (getSentinelMaster() != null) {
         Set<String> sentinelSet = getSentinelSet();
         if (sentinelSet != null && sentinelSet.size() > 0) {
-          connectionPool = new JedisSentinelPool(getSentinelMaster(), sentinelSet, this.connectionPoolConfig, getTimeout(), getPassword());
+          connectionPool = new JedisSentinelPool(getSentinelMaster(), sentinelSet, this.connectionPoolConfig, getTimeout(), getPassword(), getDatabase());
         } else {
           throw new LifecycleException("Error configuring Redis Sentinel connection pool: expected both `sentinelMaster` and `sentiels` to be configured");
         }
       } else {
-        connectionPool = new JedisPool(this.connectionPoolConfig, getHost(), getPort(), getTimeout(), getPassword());
+        connectionPool = new JedisPool(this.connectionPoolConfig, getHost(), getPort(), getTimeout(), getPassword(), getDatabase());
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -708,6 +2798,164 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
     }
   }
 
+  private void initializePayloadCache() {
+    if (getPayloadCacheMaxEntries() > 0) {
+      log.info("Caching up to " + getPayloadCacheMaxEntries() + " serialized sessions locally, validated against Redis on every load");
+      payloadCache = new SessionPayloadCache(getPayloadCacheMaxEntries(), getPayloadCacheMaxBytes(), getPayloadCacheTimeToLiveMillis());
+    } else {
+      payloadCache = null;
+    }
+  }
+
+  private void initializeCompressor() {
+    if (getCompressionThreshold() > 0) {
+      log.info("Compressing serialized data of " + getCompressionThreshold() + " bytes or more");
+      compressor = new PayloadCompressor(getCompressionThreshold(), getCompressionLevel());
+    } else {
+      compressor = null;
+    }
+  }
+
+  /**
+   * @param prefixLength number of leading bytes to keep uncompressed
+   */
+  protected byte[] compress(byte[] data, int prefixLength) {
+    return compressor == null ? data : compressor.compress(data, prefixLength);
+  }
+
+  private void initializeRefreshThrottle() {
+    if (getExpirationRefreshIntervalMillis() <= 0) {
+      refreshThrottle = null;
+      return;
+    }
+
+    if (getMaxInactiveInterval() > 0 && getExpirationRefreshIntervalMillis() > getMaxInactiveInterval() * 1000L / 2) {
+      log.warn("Sessions may expire up to " + getExpirationRefreshIntervalMillis() + "ms early; keep `expirationRefreshIntervalMillis` a small fraction of the session timeout");
+    }
+    log.info("Refreshing the expiration of unchanged sessions at most every " + getExpirationRefreshIntervalMillis() + "ms");
+    refreshThrottle = new ExpirationRefreshThrottle(getExpirationRefreshIntervalMillis());
+  }
+
+  /**
+   * Records that this server just set the expiration of a session.
+   */
+  protected void recordRefresh(String id) {
+    ExpirationRefreshThrottle throttle = refreshThrottle;
+    if (throttle != null) {
+      throttle.recordRefresh(id);
+    }
+  }
+
+  private void initializeSessionStore() throws LifecycleException {
+    SessionStore store;
+    if (storeBackend == SessionStoreBackend.POOLED) {
+      store = new PooledSessionStore(this);
+    } else {
+      if (router != null || getSentinelMaster() != null || isExpiryIndexed() || getWriteBehind()) {
+        throw new LifecycleException("The MULTIPLEXED store backend isn't supported with `clusterNodes`, `shards`, `sentinelMaster`, `expiryIndexKey` or the WRITE_BEHIND persist policy");
+      }
+      // These read and write sessions over pooled connections, outside the
+      // store, so their commands wouldn't be ordered with the store's.
+      if (isHashStorage() || getMergeOnConflict() || getPayloadCacheMaxEntries() > 0) {
+        throw new LifecycleException("The MULTIPLEXED store backend requires the STRING storage mode and isn't supported with the MERGE_ON_CONFLICT persist policy or the payload cache");
+      }
+      log.info("Sending session commands over " + getMultiplexedConnections() + " shared connections");
+      store = new MultiplexedSessionStore(getHost(), getPort(), getTimeout(), getPassword(), getDatabase(), getMultiplexedConnections(), metrics);
+    }
+
+    if (getFallbackMaxEntries() > 0) {
+      // Other commands than those of the session store would still fail.
+      if (isHashStorage() || getMergeOnConflict() || getWriteBehind() || getPayloadCacheMaxEntries() > 0) {
+        store.close();
+        throw new LifecycleException("The fallback store requires the STRING storage mode and isn't supported with the MERGE_ON_CONFLICT or WRITE_BEHIND persist policies or the payload cache");
+      }
+      log.info("Keeping up to " + getFallbackMaxEntries() + " sessions in memory while Redis is unavailable");
+      store = new FallbackSessionStore(store, new CircuitBreaker(getCircuitBreakerFailureThreshold(), getCircuitBreakerRetryDelayMillis()),
+                                       getFallbackMaxEntries(), metrics);
+    }
+    sessionStore = store;
+  }
+
+  /**
+   * Starts the write-behind queue the first time the WRITE_BEHIND policy is
+   * enabled. It keeps running until the manager stops (even if the policy
+   * is disabled again) so that queued writes are still written and still
+   * seen by findSession().
+   */
+  private synchronized void initializeWriteBehindQueue() {
+    if (getWriteBehind() && writeBehindQueue == null) {
+      log.info("Saving sessions in the background with " + getWriteBehindThreads() + " writer threads");
+      WriteBehindQueue queue = new WriteBehindQueue(this, getWriteBehindThreads(), getWriteBehindQueueCapacity(), getWriteBehindBatchSize());
+      queue.start();
+      writeBehindQueue = queue;
+    }
+  }
+
+  /**
+   * Registers the metrics MBean next to the manager's own (with
+   * "type=RedisSessionMetrics" instead of "type=Manager") and creates the
+   * metrics reporter, if one is configured.
+   */
+  private void initializeMetrics() throws LifecycleException {
+    try {
+      metricsObjectName = new ObjectName(getDomain() + ":" + getObjectNameKeyProperties().replaceFirst("^type=Manager", "type=RedisSessionMetrics"));
+      metricsServer().registerMBean(metrics, metricsObjectName);
+    } catch (Exception e) {
+      log.warn("Unable to register the session metrics MBean: " + e.getMessage());
+      metricsObjectName = null;
+    }
+
+    if (getMetricsReporterClass() != null) {
+      try {
+        log.info("Reporting session metrics to " + getMetricsReporterClass());
+        metricsReporter = (SessionMetricsReporter)Class.forName(getMetricsReporterClass()).newInstance();
+      } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+        log.fatal("Unable to load metrics reporter", e);
+        throw new LifecycleException(e);
+      }
+    } else {
+      metricsReporter = null;
+    }
+  }
+
+  private void unregisterMetrics() {
+    if (metricsObjectName != null) {
+      try {
+        metricsServer().unregisterMBean(metricsObjectName);
+      } catch (Exception e) {
+        // Do nothing.
+      }
+      metricsObjectName = null;
+    }
+  }
+
+  /**
+   * @return the MBean server the manager itself is registered with
+   */
+  private MBeanServer metricsServer() {
+    return mserver != null ? mserver : ManagementFactory.getPlatformMBeanServer();
+  }
+
+  /**
+   * Stops saving sessions in the background once the pending writes are
+   * written.
+   */
+  private synchronized void shutdownWriteBehindQueue() {
+    WriteBehindQueue queue = writeBehindQueue;
+    if (queue == null) {
+      return;
+    }
+
+    writeBehindQueue = null;
+    try {
+      if (!queue.shutdown(WRITE_BEHIND_SHUTDOWN_TIMEOUT_MILLIS)) {
+        log.warn("Timed out writing sessions to Redis; " + queue.size() + " pending writes are lost");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private void initializeSerializer() throws ClassNotFoundException, IllegalAccessException, InstantiationException {
     log.info("Attempting to use serializer :" + serializationStrategyClass);
     serializer = (Serializer) Class.forName(serializationStrategyClass).newInstance();
@@ -878,8 +3126,10 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 class DeserializedSessionContainer {
   public final RedisSession session;
   public final SessionSerializationMetadata metadata;
-  public DeserializedSessionContainer(RedisSession session, SessionSerializationMetadata metadata) {
+  public final int size;
+  public DeserializedSessionContainer(RedisSession session, SessionSerializationMetadata metadata, int size) {
     this.session = session;
     this.metadata = metadata;
+    this.size = size;
   }
 }
@@ -0,0 +1,112 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.util.Hashing;
+import redis.clients.util.ShardInfo;
+import redis.clients.util.Sharded;
+
+
+/**
+ * Spreads sessions over independent Redis servers (shards) by consistent
+ * hashing, with one connection pool per shard.
+ *
+ * Each shard is placed at 160 points of a MurmurHash ring (ketama style),
+ * derived from its "host:port" name rather than its position in the list,
+ * and a key is stored on the shard owning the next point of the ring. So
+ * adding a shard moves only about 1/N of the keys (to the new shard), and
+ * the order in which shards are listed doesn't matter.
+ *
+ * Keys are never moved to another shard while theirs is down: the sessions
+ * stored on it are unavailable until it is back, but no other session is
+ * affected and no stale copy is ever read from another shard.
+ */
+class RedisShardRouter implements RedisRouter {
+
+  private final Sharded<JedisPool, Shard> shards;
+  private final Map<String, JedisPool> pools = new HashMap<>();
+
+  RedisShardRouter(Collection<HostAndPort> nodes, JedisPoolConfig poolConfig, int timeout, String password, int database) {
+    List<Shard> shardList = new ArrayList<>(nodes.size());
+    for (HostAndPort node : nodes) {
+      shardList.add(new Shard(node, poolConfig, timeout, password, database));
+    }
+    this.shards = new Sharded<>(shardList, Hashing.MURMUR_HASH);
+    for (Shard shard : shardList) {
+      pools.put(shard.getName(), shard.pool);
+    }
+  }
+
+  @Override
+  public Jedis acquireConnection(String key) {
+    return shards.getShard(key).getResource();
+  }
+
+  @Override
+  public void returnConnection(Jedis jedis, boolean error) {
+    JedisPool pool = pools.get(jedis.getClient().getHost() + ":" + jedis.getClient().getPort());
+    if (error) {
+      pool.returnBrokenResource(jedis);
+    } else {
+      pool.returnResource(jedis);
+    }
+  }
+
+  @Override
+  public String nodeOf(String key) {
+    return shards.getShardInfo(key).getName();
+  }
+
+  @Override
+  public Collection<JedisPool> pools() {
+    return shards.getAllShards();
+  }
+
+  @Override
+  public void destroy() {
+    for (JedisPool pool : shards.getAllShards()) {
+      try {
+        pool.destroy();
+      } catch (Exception e) {
+        // Do nothing.
+      }
+    }
+  }
+
+  private static class Shard extends ShardInfo<JedisPool> {
+    private final HostAndPort node;
+    private final JedisPoolConfig poolConfig;
+    private final int timeout;
+    private final String password;
+    private final int database;
+    private JedisPool pool;
+
+    Shard(HostAndPort node, JedisPoolConfig poolConfig, int timeout, String password, int database) {
+      super(Sharded.DEFAULT_WEIGHT);
+      this.node = node;
+      this.poolConfig = poolConfig;
+      this.timeout = timeout;
+      this.password = password;
+      this.database = database;
+    }
+
+    @Override
+    protected JedisPool createResource() {
+      pool = new JedisPool(poolConfig, node.getHost(), node.getPort(), timeout, password, database);
+      return pool;
+    }
+
+    @Override
+    public String getName() {
+      return node.getHost() + ":" + node.getPort();
+    }
+  }
+}
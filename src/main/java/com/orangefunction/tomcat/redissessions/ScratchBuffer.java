@@ -0,0 +1,72 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+
+/**
+ * A byte buffer reused by its thread for output that is only needed
+ * briefly (e.g., bytes that are hashed or copied right away), instead of
+ * allocating and growing a new ByteArrayOutputStream every time.
+ *
+ * Buffers that grew beyond {@link #MAX_RETAINED_SIZE} are not kept, so a
+ * thread never holds on to the memory of an unusually large session.
+ */
+final class ScratchBuffer extends ByteArrayOutputStream {
+
+  static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<ScratchBuffer> buffers = new ThreadLocal<>();
+
+  private final DataOutputStream dataOutput = new DataOutputStream(this);
+  private boolean inUse = false;
+
+  ScratchBuffer() {
+    super(256);
+  }
+
+  /**
+   * @return the current thread's buffer, emptied; a new buffer if it is
+   *         already in use (i.e., when called again before it is released)
+   */
+  static ScratchBuffer acquire() {
+    ScratchBuffer buffer = buffers.get();
+    if (buffer == null || buffer.inUse) {
+      ScratchBuffer created = new ScratchBuffer();
+      if (buffer == null) {
+        buffers.set(created);
+      }
+      buffer = created;
+    }
+    buffer.inUse = true;
+    buffer.reset();
+    return buffer;
+  }
+
+  void release() {
+    inUse = false;
+    if (buf.length > MAX_RETAINED_SIZE && buffers.get() == this) {
+      buffers.remove();
+    }
+  }
+
+  /**
+   * @return a DataOutputStream writing into this buffer, which (unlike a
+   *         new one) reuses its buffer for writeUTF()
+   */
+  DataOutputStream dataOutput() {
+    return dataOutput;
+  }
+
+  /**
+   * @return the internal array; only the first {@link #size()} bytes are
+   *         valid, and only until the buffer is written to again
+   */
+  byte[] array() {
+    return buf;
+  }
+
+  boolean isOversized() {
+    return buf.length > MAX_RETAINED_SIZE;
+  }
+}
@@ -0,0 +1,87 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.Arrays;
+
+
+/**
+ * Fixed-size header written in front of a session stored as a string when
+ * a feature needs it: a 3 byte magic value, a format byte and the 8 byte
+ * session version.
+ *
+ * Keeping the version at a fixed offset lets it be compared inside Redis
+ * (via GETRANGE) without transferring or deserializing the session. Data
+ * written before the header existed (a plain serializer payload) is
+ * recognized by the missing magic value and reported as version 0.
+ */
+final class SessionDataHeader {
+
+  static final byte[] MAGIC = new byte[] { 'R', 'S', 'M' };
+  static final int FORMAT_OFFSET = MAGIC.length;
+  static final int VERSION_OFFSET = FORMAT_OFFSET + 1;
+  static final int LENGTH = VERSION_OFFSET + 8;
+
+  /** The payload was written by {@link Serializer#serializeFrom}. */
+  static final byte FORMAT_SERIALIZER = 1;
+  /** The payload was written by {@link FramedSessionData}. */
+  static final byte FORMAT_ATTRIBUTES = 2;
+
+  private SessionDataHeader() {
+  }
+
+  static byte[] wrap(byte format, long version, byte[] payload) {
+    byte[] data = new byte[LENGTH + payload.length];
+    write(data, format, version);
+    System.arraycopy(payload, 0, data, LENGTH, payload.length);
+    return data;
+  }
+
+  static void write(byte[] data, byte format, long version) {
+    System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+    data[FORMAT_OFFSET] = format;
+    System.arraycopy(encodeVersion(version), 0, data, VERSION_OFFSET, 8);
+  }
+
+  static boolean isPresent(byte[] data) {
+    if (data.length < LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (data[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the payload format, or 0 for data without a header
+   */
+  static byte formatOf(byte[] data) {
+    return isPresent(data) ? data[FORMAT_OFFSET] : 0;
+  }
+
+  static long versionOf(byte[] data) {
+    return isPresent(data) ? decodeVersion(data, VERSION_OFFSET) : 0L;
+  }
+
+  static byte[] payloadOf(byte[] data) {
+    return isPresent(data) ? Arrays.copyOfRange(data, LENGTH, data.length) : data;
+  }
+
+  static byte[] encodeVersion(long version) {
+    byte[] encoded = new byte[8];
+    for (int i = 7; i >= 0; i--) {
+      encoded[i] = (byte)version;
+      version >>>= 8;
+    }
+    return encoded;
+  }
+
+  static long decodeVersion(byte[] data, int offset) {
+    long version = 0L;
+    for (int i = offset; i < offset + 8; i++) {
+      version = (version << 8) | (data[i] & 0xFF);
+    }
+    return version;
+  }
+}
@@ -0,0 +1,38 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Field names used when a session is stored as a Redis hash. Session
+ * metadata lives in reserved "m:" fields and every attribute in its own
+ * "a:" field, so attribute names can never collide with the metadata.
+ */
+final class SessionHashFields {
+
+  static final byte[] VERSION = "m:version".getBytes(StandardCharsets.UTF_8);
+  static final byte[] SESSION = "m:session".getBytes(StandardCharsets.UTF_8);
+  static final byte[] ATTRIBUTES_HASH = "m:hash".getBytes(StandardCharsets.UTF_8);
+
+  static final String ATTRIBUTE_PREFIX = "a:";
+
+  private SessionHashFields() {
+  }
+
+  static byte[] attributeField(String name) {
+    return (ATTRIBUTE_PREFIX + name).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the attribute name stored in the given field, or null if the
+   *         field does not hold an attribute
+   */
+  static String attributeName(byte[] field) {
+    String name = new String(field, StandardCharsets.UTF_8);
+    return name.startsWith(ATTRIBUTE_PREFIX) ? name.substring(ATTRIBUTE_PREFIX.length()) : null;
+  }
+
+  static long decodeVersion(byte[] data) {
+    return data == null || data.length != 8 ? 0L : SessionDataHeader.decodeVersion(data, 0);
+  }
+}
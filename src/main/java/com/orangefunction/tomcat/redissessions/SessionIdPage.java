@@ -0,0 +1,48 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A page of session ids listed from the expiry index, in the order the
+ * sessions expire in, along with where the next page starts: right after
+ * the last session of this page, by its expiry score and then by its key,
+ * so deep pages cost as little as the first one.
+ */
+public class SessionIdPage {
+
+  private final List<String> ids;
+  private final boolean last;
+  private final double lastScore;
+  /** The key of the last session listed so far; null if none was. */
+  private final byte[] lastKey;
+
+  SessionIdPage(List<String> ids, boolean last, double lastScore, byte[] lastKey) {
+    this.ids = Collections.unmodifiableList(ids);
+    this.last = last;
+    this.lastScore = lastScore;
+    this.lastKey = lastKey;
+  }
+
+  public List<String> getIds() {
+    return ids;
+  }
+
+  /**
+   * @return true if no session was left to list after this page. A page
+   *         may hold fewer ids than asked for without being the last one,
+   *         when sessions expired while paging.
+   */
+  public boolean isLast() {
+    return last;
+  }
+
+  double getLastScore() {
+    return lastScore;
+  }
+
+  byte[] getLastKey() {
+    return lastKey;
+  }
+}
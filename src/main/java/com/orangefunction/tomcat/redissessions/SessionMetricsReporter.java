@@ -0,0 +1,13 @@
+package com.orangefunction.tomcat.redissessions;
+
+
+/**
+ * Pushes the manager's metrics to a metrics library or monitoring system
+ * (e.g., as gauges of a Dropwizard Metrics or Micrometer registry.) The
+ * class named in the manager's `metricsReporterClass` attribute is created
+ * when the manager starts and called from its background processing (every
+ * `processExpiresFrequency` runs of the container's background processor.)
+ */
+public interface SessionMetricsReporter {
+  void report(SessionStoreMetrics metrics);
+}
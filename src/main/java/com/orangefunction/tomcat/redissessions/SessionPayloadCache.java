@@ -0,0 +1,118 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded, least-recently-used cache of serialized sessions, which spares
+ * transferring a session that hasn't changed since this server last loaded
+ * or saved it.
+ *
+ * Entries are never trusted blindly: each one remembers the version it was
+ * loaded or saved with, and the manager only serves it after Redis confirms
+ * the stored session still carries that version. Sessions are cached in
+ * their serialized form since a session's dirty tracking isn't thread-safe:
+ * each request deserializes its own copy.
+ */
+class SessionPayloadCache {
+
+  static class Entry {
+    /** The session as stored as a string, or null if stored as a hash. */
+    final byte[] data;
+    /** The fields of the session stored as a hash, or null if stored as a string. */
+    final Map<byte[], byte[]> fields;
+    final long version;
+    final int size;
+    final long expiresAt;
+
+    Entry(byte[] data, Map<byte[], byte[]> fields, long version, int size, long expiresAt) {
+      this.data = data;
+      this.fields = fields;
+      this.version = version;
+      this.size = size;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final int maxEntries;
+  private final long maxBytes;
+  private final long timeToLiveMillis;
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes = 0;
+
+  /**
+   * @param maxEntries maximum number of cached sessions
+   * @param maxBytes maximum total serialized size of cached sessions; 0 for no limit
+   * @param timeToLiveMillis maximum time an entry is kept; 0 for no limit
+   */
+  SessionPayloadCache(int maxEntries, long maxBytes, long timeToLiveMillis) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.timeToLiveMillis = timeToLiveMillis;
+  }
+
+  synchronized Entry get(String id) {
+    Entry entry = entries.get(id);
+    if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+      removeEntry(id);
+      entry = null;
+    }
+    return entry;
+  }
+
+  /**
+   * @param data the session as stored as a string, or null if stored as a hash
+   * @param fields the fields of the session stored as a hash (never modified
+   *        afterwards), or null if stored as a string
+   */
+  synchronized void put(String id, byte[] data, Map<byte[], byte[]> fields, long version, int size) {
+    if (maxBytes > 0 && size > maxBytes) {
+      removeEntry(id);
+      return;
+    }
+
+    long expiresAt = timeToLiveMillis > 0 ? System.currentTimeMillis() + timeToLiveMillis : Long.MAX_VALUE;
+    Entry previous = entries.put(id, new Entry(data, fields, version, size, expiresAt));
+    if (previous != null) {
+      totalBytes -= previous.size;
+    }
+    totalBytes += size;
+
+    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (eldest.hasNext() && (entries.size() > maxEntries || (maxBytes > 0 && totalBytes > maxBytes))) {
+      totalBytes -= eldest.next().getValue().size;
+      eldest.remove();
+    }
+  }
+
+  /**
+   * @return the size recorded for a cached session, or 0 if it is not cached
+   */
+  synchronized int sizeOf(String id) {
+    Entry entry = entries.get(id);
+    return entry == null ? 0 : entry.size;
+  }
+
+  synchronized void remove(String id) {
+    removeEntry(id);
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    totalBytes = 0;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private void removeEntry(String id) {
+    Entry entry = entries.remove(id);
+    if (entry != null) {
+      totalBytes -= entry.size;
+    }
+  }
+}
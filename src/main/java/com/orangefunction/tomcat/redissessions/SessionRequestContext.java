@@ -0,0 +1,62 @@
+package com.orangefunction.tomcat.redissessions;
+
+
+/**
+ * The session used by a request, along with what the manager knows about
+ * its stored copy, kept from the time the session is loaded (or created)
+ * until it is saved at the end of the request.
+ *
+ * A context belongs to a request rather than to a thread: the
+ * {@link RedisSessionHandlerValve} keeps it with the request and binds it
+ * to whichever thread processes the request, so an asynchronous request
+ * dispatched to another thread still finds its session.
+ */
+final class SessionRequestContext {
+
+  private String sessionId;
+  private RedisSession session;
+  private SessionSerializationMetadata metadata;
+  private boolean persisted;
+
+  /**
+   * @return true if the context holds the session with the given id
+   */
+  boolean isFor(String id) {
+    return id != null && id.equals(sessionId);
+  }
+
+  String getSessionId() {
+    return sessionId;
+  }
+
+  RedisSession getSession() {
+    return session;
+  }
+
+  SessionSerializationMetadata getMetadata() {
+    return metadata;
+  }
+
+  boolean isPersisted() {
+    return persisted;
+  }
+
+  void set(String sessionId, RedisSession session, SessionSerializationMetadata metadata, boolean persisted) {
+    this.sessionId = sessionId;
+    this.session = session;
+    this.metadata = metadata;
+    this.persisted = persisted;
+  }
+
+  /**
+   * Records that the session was just saved with the given metadata.
+   */
+  void saved(SessionSerializationMetadata metadata) {
+    this.metadata = metadata;
+    this.persisted = true;
+  }
+
+  void clear() {
+    set(null, null, null, false);
+  }
+}
@@ -1,16 +1,65 @@
 package com.orangefunction.tomcat.redissessions;
 
 import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 public class SessionSerializationMetadata implements Serializable {
 
+  /**
+   * The UID the class had before it was declared, so that earlier versions
+   * of the manager still read the metadata written in front of a session.
+   */
+  private static final long serialVersionUID = 4817120933319990092L;
+
   private byte[] sessionAttributesHash;
 
+  /**
+   * Version of the stored session this metadata belongs to. It is kept in
+   * the header in front of the serialized data rather than being written
+   * by the serializer.
+   */
+  private transient long version;
+
+  /**
+   * Hash of each attribute's serialized bytes as stored, or null if unknown
+   * (e.g., for sessions stored by a serializer that can only serialize whole
+   * sessions.) Lets the manager tell which attributes were modified in place.
+   */
+  private transient Map<String, Long> attributeHashes;
+
   public SessionSerializationMetadata() {
     this.sessionAttributesHash = new byte[0];
   }
 
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
+  /**
+   * The version to store with the next write of the session. The upper 32
+   * bits are a counter incremented on every write and the lower 32 bits are
+   * random, so versions keep increasing while two nodes writing the same
+   * session concurrently will almost certainly not produce the same value.
+   */
+  public long nextVersion() {
+    long counter = (version >>> 32) + 1;
+    return (counter << 32) | (ThreadLocalRandom.current().nextInt() & 0xFFFFFFFFL);
+  }
+
+  public Map<String, Long> getAttributeHashes() {
+    return attributeHashes;
+  }
+
+  public void setAttributeHashes(Map<String, Long> attributeHashes) {
+    this.attributeHashes = attributeHashes;
+  }
+
   public byte[] getSessionAttributesHash() {
     return sessionAttributesHash;
   }
@@ -21,6 +70,8 @@ public class SessionSerializationMetadata implements Serializable {
 
   public void copyFieldsFrom(SessionSerializationMetadata metadata) {
     this.setSessionAttributesHash(metadata.getSessionAttributesHash());
+    this.setVersion(metadata.getVersion());
+    this.setAttributeHashes(metadata.getAttributeHashes());
   }
 
   private void writeObject(java.io.ObjectOutputStream out) throws IOException {
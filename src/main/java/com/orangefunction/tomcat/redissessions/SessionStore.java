@@ -0,0 +1,32 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.IOException;
+
+
+/**
+ * The commands about a single serialized session (STRING storage mode)
+ * that make up the hot path of the manager: loading, saving, refreshing
+ * the expiration of, creating and removing a session.
+ *
+ * A non-positive expiration means the session never expires.
+ */
+interface SessionStore {
+
+  /**
+   * @return the serialized session, or null if it isn't stored
+   */
+  byte[] get(byte[] key) throws IOException;
+
+  void set(byte[] key, byte[] data, int expiration) throws IOException;
+
+  /**
+   * @return true if the session was written; false if the key is taken
+   */
+  boolean setIfAbsent(byte[] key, byte[] data, int expiration) throws IOException;
+
+  void expire(byte[] key, int expiration) throws IOException;
+
+  void del(byte[] key) throws IOException;
+
+  void close();
+}
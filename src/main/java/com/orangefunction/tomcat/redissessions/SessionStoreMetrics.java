@@ -0,0 +1,166 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counters and histograms of what the manager does with Redis, for sizing
+ * Redis and finding slow commands and oversized sessions, along with the
+ * largest attributes and sessions saved. Recording only updates atomic
+ * counters, so it is cheap enough to be always on.
+ */
+public class SessionStoreMetrics implements SessionStoreMetricsMXBean {
+
+  static final int LARGEST_SIZES_KEPT = 10;
+
+  final AtomicLong necessarySaves = new AtomicLong();
+  final AtomicLong unnecessarySaves = new AtomicLong();
+  final AtomicLong skippedExpirationRefreshes = new AtomicLong();
+  final AtomicLong sessionIdCollisions = new AtomicLong();
+  final AtomicLong sessionsNotFound = new AtomicLong();
+  final AtomicLong refusedAttributes = new AtomicLong();
+  final AtomicLong fallbackCommands = new AtomicLong();
+  final AtomicLong fallbackWritesLost = new AtomicLong();
+  final AtomicLong circuitBreakerOpenings = new AtomicLong();
+  final AtomicLong writeBehindErrors = new AtomicLong();
+  final AtomicLong writeBehindWritesLost = new AtomicLong();
+
+  final LogLinearHistogram getLatency = new LogLinearHistogram();
+  final LogLinearHistogram setLatency = new LogLinearHistogram();
+  final LogLinearHistogram expireLatency = new LogLinearHistogram();
+  final LogLinearHistogram delLatency = new LogLinearHistogram();
+  final LogLinearHistogram poolWait = new LogLinearHistogram();
+  final LogLinearHistogram savedSessionSize = new LogLinearHistogram();
+  final LogLinearHistogram loadedSessionSize = new LogLinearHistogram();
+  final LogLinearHistogram deserializationTime = new LogLinearHistogram();
+
+  final SizeRanking largestAttributes = new SizeRanking(LARGEST_SIZES_KEPT);
+  final SizeRanking largestSessions = new SizeRanking(LARGEST_SIZES_KEPT);
+
+  @Override
+  public long getNecessarySaves() {
+    return necessarySaves.get();
+  }
+
+  @Override
+  public long getUnnecessarySaves() {
+    return unnecessarySaves.get();
+  }
+
+  @Override
+  public long getSkippedExpirationRefreshes() {
+    return skippedExpirationRefreshes.get();
+  }
+
+  @Override
+  public long getSessionIdCollisions() {
+    return sessionIdCollisions.get();
+  }
+
+  @Override
+  public long getSessionsNotFound() {
+    return sessionsNotFound.get();
+  }
+
+  @Override
+  public HistogramSnapshot getGetLatency() {
+    return getLatency.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getSetLatency() {
+    return setLatency.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getExpireLatency() {
+    return expireLatency.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getDelLatency() {
+    return delLatency.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getPoolWait() {
+    return poolWait.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getSavedSessionSize() {
+    return savedSessionSize.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getLoadedSessionSize() {
+    return loadedSessionSize.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getDeserializationTime() {
+    return deserializationTime.snapshot();
+  }
+
+  @Override
+  public long getRefusedAttributes() {
+    return refusedAttributes.get();
+  }
+
+  @Override
+  public long getFallbackCommands() {
+    return fallbackCommands.get();
+  }
+
+  @Override
+  public long getFallbackWritesLost() {
+    return fallbackWritesLost.get();
+  }
+
+  @Override
+  public long getCircuitBreakerOpenings() {
+    return circuitBreakerOpenings.get();
+  }
+
+  @Override
+  public long getWriteBehindErrors() {
+    return writeBehindErrors.get();
+  }
+
+  @Override
+  public long getWriteBehindWritesLost() {
+    return writeBehindWritesLost.get();
+  }
+
+  @Override
+  public List<SizeRecord> getLargestAttributes() {
+    return largestAttributes.records();
+  }
+
+  @Override
+  public List<SizeRecord> getLargestSessions() {
+    return largestSessions.records();
+  }
+
+  @Override
+  public void reset() {
+    necessarySaves.set(0);
+    unnecessarySaves.set(0);
+    skippedExpirationRefreshes.set(0);
+    sessionIdCollisions.set(0);
+    sessionsNotFound.set(0);
+    refusedAttributes.set(0);
+    fallbackCommands.set(0);
+    fallbackWritesLost.set(0);
+    circuitBreakerOpenings.set(0);
+    writeBehindErrors.set(0);
+    writeBehindWritesLost.set(0);
+    largestAttributes.reset();
+    largestSessions.reset();
+    for (LogLinearHistogram histogram : new LogLinearHistogram[] {getLatency, setLatency, expireLatency, delLatency, poolWait,
+                                                                  savedSessionSize, loadedSessionSize, deserializationTime}) {
+      histogram.reset();
+    }
+  }
+}
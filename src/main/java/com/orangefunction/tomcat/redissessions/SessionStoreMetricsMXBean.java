@@ -0,0 +1,76 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.List;
+
+
+/**
+ * The JMX view of {@link SessionStoreMetrics}. Latencies are in
+ * microseconds and sizes in bytes.
+ */
+public interface SessionStoreMetricsMXBean {
+
+  /** Saves that wrote the session (it changed, or the save was forced.) */
+  long getNecessarySaves();
+
+  /** Saves that only refreshed the session's expiration. */
+  long getUnnecessarySaves();
+
+  /** Unnecessary saves that skipped the expiration refresh, done recently. */
+  long getSkippedExpirationRefreshes();
+
+  /** Generated session ids that were already taken in Redis. */
+  long getSessionIdCollisions();
+
+  /** Session lookups that found no session in Redis. */
+  long getSessionsNotFound();
+
+  /** Reads of a session (GET, HGETALL or the payload cache's version check.) */
+  HistogramSnapshot getGetLatency();
+
+  /** Writes of a session (SET, SETEX, SET NX, MULTI/EXEC or compare-and-set.) */
+  HistogramSnapshot getSetLatency();
+
+  /** Expiration refreshes of unchanged sessions. */
+  HistogramSnapshot getExpireLatency();
+
+  /** Removals of sessions. */
+  HistogramSnapshot getDelLatency();
+
+  /** Time to borrow a connection from the pool. */
+  HistogramSnapshot getPoolWait();
+
+  /** Size of the sessions written, as sent to Redis. */
+  HistogramSnapshot getSavedSessionSize();
+
+  /** Size of the sessions read, as received from Redis. */
+  HistogramSnapshot getLoadedSessionSize();
+
+  /** Time to decompress and deserialize a session read from Redis. */
+  HistogramSnapshot getDeserializationTime();
+
+  /** Attributes left out of saved sessions for exceeding maxAttributeSize. */
+  long getRefusedAttributes();
+
+  /** Commands served by the in-memory fallback store instead of Redis. */
+  long getFallbackCommands();
+
+  /** Writes of the fallback store dropped (it was full) or never written back. */
+  long getFallbackWritesLost();
+
+  /** Times Redis became unavailable, opening the circuit breaker. */
+  long getCircuitBreakerOpenings();
+
+  /** Write-behind writes that failed or got an error reply. */
+  long getWriteBehindErrors();
+
+  /** Write-behind writes dropped after failing for good or too many times. */
+  long getWriteBehindWritesLost();
+
+  /** The attributes with the largest serialized size, by name, largest first. */
+  List<SizeRecord> getLargestAttributes();
+
+  /** The sessions with the largest serialized size, largest first. */
+  List<SizeRecord> getLargestSessions();
+
+  void reset();
+}
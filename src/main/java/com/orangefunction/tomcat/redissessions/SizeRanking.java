@@ -0,0 +1,83 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The largest sizes seen, by name (e.g., attribute names or session ids),
+ * keeping the largest size of each name and only the top names.
+ *
+ * Most sizes are smaller than the smallest one kept, and those are
+ * rejected with a single volatile read, without locking.
+ */
+final class SizeRanking {
+
+  private final int capacity;
+  private final Map<String, SizeRecord> records = new HashMap<>();
+  private volatile long floor = -1;
+
+  SizeRanking(int capacity) {
+    this.capacity = capacity;
+  }
+
+  void record(String name, long size, String sessionId) {
+    if (size <= floor) {
+      return;
+    }
+
+    synchronized (this) {
+      SizeRecord current = records.get(name);
+      if (current != null) {
+        if (size > current.getSize()) {
+          records.put(name, new SizeRecord(name, size, sessionId));
+        }
+      } else if (records.size() < capacity) {
+        records.put(name, new SizeRecord(name, size, sessionId));
+      } else {
+        SizeRecord smallest = smallest();
+        if (size <= smallest.getSize()) {
+          return;
+        }
+        records.remove(smallest.getName());
+        records.put(name, new SizeRecord(name, size, sessionId));
+      }
+      if (records.size() >= capacity) {
+        floor = smallest().getSize();
+      }
+    }
+  }
+
+  /**
+   * @return the records kept, largest first
+   */
+  synchronized List<SizeRecord> records() {
+    List<SizeRecord> sorted = new ArrayList<>(records.values());
+    Collections.sort(sorted, new Comparator<SizeRecord>() {
+      @Override
+      public int compare(SizeRecord a, SizeRecord b) {
+        return Long.compare(b.getSize(), a.getSize());
+      }
+    });
+    return sorted;
+  }
+
+  synchronized void reset() {
+    records.clear();
+    floor = -1;
+  }
+
+  private SizeRecord smallest() {
+    SizeRecord smallest = null;
+    for (SizeRecord record : records.values()) {
+      if (smallest == null || record.getSize() < smallest.getSize()) {
+        smallest = record;
+      }
+    }
+    return smallest;
+  }
+}
@@ -0,0 +1,39 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.beans.ConstructorProperties;
+
+
+/**
+ * The largest serialized size seen of an attribute or session, and the
+ * session it was seen in.
+ */
+public class SizeRecord {
+
+  private final String name;
+  private final long size;
+  private final String sessionId;
+
+  @ConstructorProperties({"name", "size", "sessionId"})
+  public SizeRecord(String name, long size, String sessionId) {
+    this.name = name;
+    this.size = size;
+    this.sessionId = sessionId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  @Override
+  public String toString() {
+    return name + ": " + size + " bytes (session " + sessionId + ")";
+  }
+}
@@ -0,0 +1,490 @@
+package com.orangefunction.tomcat.redissessions;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+
+/**
+ * Writes serialized sessions to Redis from background threads so that the
+ * request thread doesn't wait on Redis (the WRITE_BEHIND persist policy.)
+ *
+ * Sessions are assigned to a writer thread by id, so the writes of a session
+ * are applied in order. A write replaces any write of the same session that
+ * is still pending, and each writer sends its pending writes in pipelined
+ * batches. Once the queue of a writer is full, callers block until there is
+ * room again.
+ *
+ * Writes stay visible through {@link #pendingWrite(String)} until Redis has
+ * acknowledged them, so the manager never reads a session older than the
+ * one it last saved. A write that fails because Redis can't be reached or
+ * can't take writes for now (e.g., READONLY during a failover) is moved to
+ * the back of the queue and retried after a delay that grows with each
+ * failure, up to {@link #MAX_RETRIES} times; later writes are sent in the
+ * meantime. Any other error (e.g., Redis being out of memory) would fail
+ * again, so the write is dropped, as are writes that still fail once the
+ * queue is shut down.
+ */
+class WriteBehindQueue {
+
+  static final long MIN_RETRY_DELAY_MILLIS = 100;
+  static final long MAX_RETRY_DELAY_MILLIS = 10000;
+  /** About two and a half minutes of retries. */
+  static final int MAX_RETRIES = 20;
+
+  /** Error replies of a Redis server that is failing over, starting or resharding. */
+  private static final String[] RETRIABLE_ERRORS = { "READONLY", "LOADING", "MASTERDOWN", "CLUSTERDOWN", "TRYAGAIN" };
+
+  static class PendingWrite {
+    /** The serialized session, or null for an expiration refresh or a removal. */
+    final byte[] data;
+    final int expiration;
+    final boolean removal;
+    /** Times the write failed and was queued again; only used by its writer. */
+    int retries = 0;
+    /** When the write may be retried; only used by its writer. */
+    long retryAt = 0;
+
+    PendingWrite(byte[] data, int expiration, boolean removal) {
+      this.data = data;
+      this.expiration = expiration;
+      this.removal = removal;
+    }
+
+    boolean isExpirationOnly() {
+      return data == null && !removal;
+    }
+  }
+
+  private final Log log = LogFactory.getLog(WriteBehindQueue.class);
+
+  private final RedisSessionManager manager;
+  private final Writer[] writers;
+
+  /**
+   * @param capacity maximum number of pending writes, split across writers
+   * @param batchSize maximum number of writes sent in one pipeline
+   */
+  WriteBehindQueue(RedisSessionManager manager, int threads, int capacity, int batchSize) {
+    this.manager = manager;
+    this.writers = new Writer[threads];
+    int writerCapacity = Math.max(1, capacity / threads);
+    for (int i = 0; i < threads; i++) {
+      writers[i] = new Writer("RedisSessionWriteBehind-" + i, writerCapacity, batchSize);
+    }
+  }
+
+  void start() {
+    for (Writer writer : writers) {
+      writer.start();
+    }
+  }
+
+  /**
+   * Writes all pending writes and stops the writer threads.
+   *
+   * @return false if the writers didn't finish within the timeout
+   */
+  boolean shutdown(long timeoutMillis) throws InterruptedException {
+    for (Writer writer : writers) {
+      writer.shutdown();
+    }
+
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (Writer writer : writers) {
+      writer.join(Math.max(1, deadline - System.currentTimeMillis()));
+      if (writer.isAlive()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void set(String id, byte[] data, int expiration) throws IOException {
+    writerFor(id).add(id, new PendingWrite(data, expiration, false));
+  }
+
+  void expire(String id, int expiration) throws IOException {
+    writerFor(id).add(id, new PendingWrite(null, expiration, false));
+  }
+
+  void remove(String id) throws IOException {
+    writerFor(id).add(id, new PendingWrite(null, 0, true));
+  }
+
+  /**
+   * @return the latest write of the session not yet acknowledged by Redis,
+   *         or null if there is none
+   */
+  PendingWrite pendingWrite(String id) {
+    return writerFor(id).get(id);
+  }
+
+  int size() {
+    int size = 0;
+    for (Writer writer : writers) {
+      size += writer.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return true if the error means Redis couldn't be reached or can't
+   *         take writes for now, so the write may succeed later
+   */
+  private static boolean isRetriable(Exception e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof JedisConnectionException) {
+        return true;
+      }
+      String message = cause.getMessage();
+      if (message != null) {
+        for (String error : RETRIABLE_ERRORS) {
+          if (message.startsWith(error)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private Writer writerFor(String id) {
+    return writers[(id.hashCode() & Integer.MAX_VALUE) % writers.length];
+  }
+
+  private class Writer extends Thread {
+    private final int capacity;
+    private final int batchSize;
+
+    private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean stopping = false;
+
+    Writer(String name, int capacity, int batchSize) {
+      super(name);
+      this.capacity = capacity;
+      this.batchSize = batchSize;
+      setDaemon(true);
+    }
+
+    void add(String id, PendingWrite write) throws IOException {
+      lock.lock();
+      try {
+        PendingWrite previous = pending.get(id);
+        if (previous == null) {
+          while (pending.size() >= capacity) {
+            log.debug("Write-behind queue is full; waiting to save session " + id);
+            notFull.await();
+          }
+          previous = pending.get(id);
+        }
+
+        // A pending SETEX or DEL already covers an expiration refresh.
+        if (previous != null && write.isExpirationOnly() && !previous.isExpirationOnly()) {
+          return;
+        }
+
+        pending.put(id, write);
+        notEmpty.signal();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting to queue session " + id, e);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    PendingWrite get(String id) {
+      lock.lock();
+      try {
+        return pending.get(id);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    int size() {
+      lock.lock();
+      try {
+        return pending.size();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void shutdown() {
+      lock.lock();
+      try {
+        stopping = true;
+        notEmpty.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        List<Map.Entry<String, PendingWrite>> batch = new ArrayList<>(batchSize);
+
+        lock.lock();
+        try {
+          while (true) {
+            while (pending.isEmpty() && !stopping) {
+              notEmpty.await(1, TimeUnit.SECONDS);
+            }
+            if (pending.isEmpty()) {
+              return;
+            }
+
+            // Writes stay in the queue until they are acknowledged; a write
+            // replacing one of them meanwhile is sent with the next batch.
+            // Failed writes wait for their retry, unless shutting down.
+            long now = System.currentTimeMillis();
+            long nextRetryAt = Long.MAX_VALUE;
+            for (Iterator<Map.Entry<String, PendingWrite>> iter = pending.entrySet().iterator(); iter.hasNext() && batch.size() < batchSize;) {
+              Map.Entry<String, PendingWrite> entry = iter.next();
+              if (entry.getValue().retryAt > now && !stopping) {
+                nextRetryAt = Math.min(nextRetryAt, entry.getValue().retryAt);
+              } else {
+                batch.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+              }
+            }
+            if (!batch.isEmpty()) {
+              break;
+            }
+            // New writes and shutting down cut the wait short.
+            notEmpty.await(nextRetryAt - now, TimeUnit.MILLISECONDS);
+          }
+        } catch (InterruptedException e) {
+          log.warn("Write-behind writer interrupted with " + pending.size() + " pending writes");
+          return;
+        } finally {
+          lock.unlock();
+        }
+
+        List<Map.Entry<String, PendingWrite>> failed = new ArrayList<>();
+        List<Map.Entry<String, PendingWrite>> retried = new ArrayList<>();
+        write(batch, failed, retried);
+
+        boolean stopped;
+        int lost = 0;
+        int retrying = 0;
+        lock.lock();
+        try {
+          stopped = stopping;
+          long now = System.currentTimeMillis();
+          for (Map.Entry<String, PendingWrite> written : batch) {
+            String id = written.getKey();
+            PendingWrite write = written.getValue();
+            if (pending.get(id) != write) {
+              // Replaced meanwhile: the new write is sent with a later batch.
+              continue;
+            }
+            pending.remove(id);
+            if (!failed.contains(written)) {
+              continue;
+            }
+            if (stopped || !retried.contains(written) || write.retries >= MAX_RETRIES) {
+              lost++;
+            } else {
+              // Queued again at the back, so it doesn't hold up later writes.
+              write.retryAt = now + Math.min(MAX_RETRY_DELAY_MILLIS, MIN_RETRY_DELAY_MILLIS << Math.min(write.retries, 16));
+              write.retries++;
+              pending.put(id, write);
+              retrying++;
+            }
+          }
+          notFull.signalAll();
+        } finally {
+          lock.unlock();
+        }
+
+        if (retrying > 0) {
+          log.warn("Retrying " + retrying + " failed session writes later");
+        }
+        if (lost > 0) {
+          log.error("Dropped " + lost + " session writes that Redis failed" + (stopped ? " while shutting down" : "") + "; their changes are lost");
+          manager.metrics.writeBehindWritesLost.addAndGet(lost);
+        }
+      }
+    }
+
+    /**
+     * Adds the writes of the batch that failed to failed, and those among
+     * them worth retrying to retried as well.
+     */
+    private void write(List<Map.Entry<String, PendingWrite>> batch, List<Map.Entry<String, PendingWrite>> failed,
+                       List<Map.Entry<String, PendingWrite>> retried) {
+      for (List<Map.Entry<String, PendingWrite>> nodeBatch : batchesByNode(batch)) {
+        writePipelined(nodeBatch, failed, retried);
+      }
+    }
+
+    /**
+     * Splits a batch by the Redis server (a Redis Cluster node or a shard)
+     * holding each session, since a pipeline is sent to a single server.
+     */
+    private Collection<List<Map.Entry<String, PendingWrite>>> batchesByNode(List<Map.Entry<String, PendingWrite>> batch) {
+      RedisRouter router = manager.router;
+      if (router == null) {
+        return Collections.singletonList(batch);
+      }
+
+      Map<String, List<Map.Entry<String, PendingWrite>>> batches = new LinkedHashMap<>();
+      for (Map.Entry<String, PendingWrite> entry : batch) {
+        String node = router.nodeOf(manager.keyOf(entry.getKey()));
+        List<Map.Entry<String, PendingWrite>> nodeBatch = batches.get(node);
+        if (nodeBatch == null) {
+          nodeBatch = new ArrayList<>();
+          batches.put(node, nodeBatch);
+        }
+        nodeBatch.add(entry);
+      }
+      return batches.values();
+    }
+
+    /**
+     * Adds the writes that failed, or got an error reply, to failed, and
+     * those that failed for a reason that may go away to retried as well.
+     */
+    private void writePipelined(List<Map.Entry<String, PendingWrite>> batch, List<Map.Entry<String, PendingWrite>> failed,
+                                List<Map.Entry<String, PendingWrite>> retried) {
+      Jedis jedis = null;
+      Boolean error = true;
+      int[] commandCounts = new int[batch.size()];
+      List<Object> results;
+      try {
+        jedis = manager.acquireConnection(manager.keyOf(batch.get(0).getKey()));
+        Pipeline pipeline = jedis.pipelined();
+        for (int i = 0; i < batch.size(); i++) {
+          Map.Entry<String, PendingWrite> entry = batch.get(i);
+          commandCounts[i] = write(pipeline, manager.keyOf(entry.getKey()).getBytes(StandardCharsets.UTF_8), entry.getValue());
+        }
+        results = pipeline.syncAndReturnAll();
+        error = false;
+      } catch (Exception e) {
+        log.error("Error writing " + batch.size() + " sessions to Redis", e);
+        manager.metrics.writeBehindErrors.addAndGet(batch.size());
+        failed.addAll(batch);
+        if (isRetriable(e)) {
+          retried.addAll(batch);
+        }
+        return;
+      } finally {
+        if (jedis != null) {
+          manager.returnConnection(jedis, error);
+        }
+      }
+
+      int next = 0;
+      for (int i = 0; i < batch.size(); i++) {
+        Map.Entry<String, PendingWrite> entry = batch.get(i);
+        Exception reply = null;
+        for (int command = 0; command < commandCounts[i] && next < results.size(); command++, next++) {
+          if (reply == null && results.get(next) instanceof Exception) {
+            reply = (Exception)results.get(next);
+          }
+        }
+        if (reply instanceof JedisRedirectionException) {
+          // The session's slot moved to another Redis Cluster node: it is
+          // written again on its own, following the redirection.
+          Exception redirectedError = writeRedirected(entry.getKey(), entry.getValue());
+          if (redirectedError != null) {
+            failed.add(entry);
+            if (isRetriable(redirectedError)) {
+              retried.add(entry);
+            }
+          }
+        } else if (reply != null) {
+          log.error("Error writing session " + entry.getKey() + " to Redis: " + reply.getMessage());
+          manager.metrics.writeBehindErrors.incrementAndGet();
+          failed.add(entry);
+          if (isRetriable(reply)) {
+            retried.add(entry);
+          }
+        }
+      }
+    }
+
+    /**
+     * @return the error if the write failed, or null
+     */
+    private Exception writeRedirected(final String id, final PendingWrite write) {
+      try {
+        final String key = manager.keyOf(id);
+        manager.execute(key, new RedisCommand<Void>() {
+          @Override
+          public Void execute(Jedis jedis) {
+            Pipeline pipeline = jedis.pipelined();
+            write(pipeline, key.getBytes(StandardCharsets.UTF_8), write);
+            for (Object result : pipeline.syncAndReturnAll()) {
+              if (result instanceof RuntimeException) {
+                throw (RuntimeException)result;
+              }
+            }
+            return null;
+          }
+        });
+        return null;
+      } catch (Exception e) {
+        log.error("Error writing session " + id + " to Redis", e);
+        manager.metrics.writeBehindErrors.incrementAndGet();
+        return e;
+      }
+    }
+
+    /**
+     * @return the number of commands added to the pipeline
+     */
+    private int write(Pipeline pipeline, byte[] binaryKey, PendingWrite write) {
+      int commands = 0;
+      if (write.removal) {
+        pipeline.del(binaryKey);
+        commands++;
+      } else if (write.data != null) {
+        if (write.expiration > 0) {
+          pipeline.setex(binaryKey, write.expiration, write.data);
+        } else {
+          pipeline.set(binaryKey, write.data);
+        }
+        commands++;
+      } else if (write.expiration > 0) {
+        pipeline.expire(binaryKey, write.expiration);
+        commands++;
+      }
+
+      if (manager.isExpiryIndexed()) {
+        if (write.removal) {
+          manager.unindex(pipeline, binaryKey);
+          commands++;
+        } else if (write.data != null || write.expiration > 0) {
+          manager.indexExpiration(pipeline, binaryKey, write.expiration);
+          commands++;
+        }
+      }
+      return commands;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.orangefunction.tomcat.redissessions;
+
+
+/**
+ * The xxHash64 non-cryptographic hash (https://github.com/Cyan4973/xxHash),
+ * used to detect changed attributes. It is an order of magnitude faster
+ * than MD5 and, since it only has to tell whether serialized data changed,
+ * 64 bits are plenty.
+ */
+final class XXHash64 {
+
+  private static final long PRIME1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME3 = 0x165667B19E3779F9L;
+  private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+  private XXHash64() {
+  }
+
+  static long hash(byte[] data) {
+    return hash(data, 0, data.length, 0);
+  }
+
+  static long hash(byte[] data, int offset, int length, long seed) {
+    int end = offset + length;
+    int p = offset;
+    long h64;
+
+    if (length >= 32) {
+      long v1 = seed + PRIME1 + PRIME2;
+      long v2 = seed + PRIME2;
+      long v3 = seed;
+      long v4 = seed - PRIME1;
+      int limit = end - 32;
+      do {
+        v1 = round(v1, readLong(data, p));
+        v2 = round(v2, readLong(data, p + 8));
+        v3 = round(v3, readLong(data, p + 16));
+        v4 = round(v4, readLong(data, p + 24));
+        p += 32;
+      } while (p <= limit);
+
+      h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      h64 = mergeRound(h64, v1);
+      h64 = mergeRound(h64, v2);
+      h64 = mergeRound(h64, v3);
+      h64 = mergeRound(h64, v4);
+    } else {
+      h64 = seed + PRIME5;
+    }
+
+    h64 += length;
+
+    while (p + 8 <= end) {
+      h64 ^= round(0, readLong(data, p));
+      h64 = Long.rotateLeft(h64, 27) * PRIME1 + PRIME4;
+      p += 8;
+    }
+    if (p + 4 <= end) {
+      h64 ^= (readInt(data, p) & 0xFFFFFFFFL) * PRIME1;
+      h64 = Long.rotateLeft(h64, 23) * PRIME2 + PRIME3;
+      p += 4;
+    }
+    while (p < end) {
+      h64 ^= (data[p] & 0xFF) * PRIME5;
+      h64 = Long.rotateLeft(h64, 11) * PRIME1;
+      p++;
+    }
+
+    h64 ^= h64 >>> 33;
+    h64 *= PRIME2;
+    h64 ^= h64 >>> 29;
+    h64 *= PRIME3;
+    h64 ^= h64 >>> 32;
+    return h64;
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * PRIME2;
+    acc = Long.rotateLeft(acc, 31);
+    return acc * PRIME1;
+  }
+
+  private static long mergeRound(long acc, long value) {
+    acc ^= round(0, value);
+    return acc * PRIME1 + PRIME4;
+  }
+
+  private static long readLong(byte[] data, int p) {
+    return (data[p] & 0xFFL)
+         | (data[p + 1] & 0xFFL) << 8
+         | (data[p + 2] & 0xFFL) << 16
+         | (data[p + 3] & 0xFFL) << 24
+         | (data[p + 4] & 0xFFL) << 32
+         | (data[p + 5] & 0xFFL) << 40
+         | (data[p + 6] & 0xFFL) << 48
+         | (data[p + 7] & 0xFFL) << 56;
+  }
+
+  private static int readInt(byte[] data, int p) {
+    return (data[p] & 0xFF)
+         | (data[p + 1] & 0xFF) << 8
+         | (data[p + 2] & 0xFF) << 16
+         | (data[p + 3] & 0xFF) << 24;
+  }
+}
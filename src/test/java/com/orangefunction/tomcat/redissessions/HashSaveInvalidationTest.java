@@ -0,0 +1,123 @@
+package com.orangefunction.tomcat.redissessions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.catalina.core.StandardContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+
+
+/**
+ * Saves of a session stored as a hash must not bring back a session that
+ * another server invalidated between the load and the save. The stubbed
+ * connection runs the save script's logic against hashes kept in memory.
+ */
+public class HashSaveInvalidationTest {
+
+  private final Map<String, Map<String, byte[]>> hashes = new HashMap<>();
+
+  private RedisSessionManager manager;
+  private Jedis jedis;
+  private RedisSession session;
+  private String key;
+
+  @Before
+  public void setUp() throws Exception {
+    manager = new RedisSessionManager();
+    manager.setContainer(new StandardContext());
+    manager.setStorageMode("HASH");
+    manager.serializer = new JavaSerializer();
+    manager.serializer.setClassLoader(getClass().getClassLoader());
+
+    jedis = new Jedis("localhost") {
+      @Override
+      public Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args) {
+        return setHashIfExists(keys, args);
+      }
+    };
+
+    session = new RedisSession(manager);
+    session.setValid(true);
+    session.setId("0123456789ABCDEF0123456789ABCDEF");
+    session.putLoadedAttribute("user", "someone@example.com");
+    session.putLoadedAttribute("count", 1);
+    key = new String(session.getBinaryKey(), StandardCharsets.UTF_8);
+
+    // Created by createSession(), then saved in full by this request.
+    hashes.put(key, new HashMap<String, byte[]>());
+    hashes.get(key).put("placeholder", new byte[0]);
+    manager.findSession(null);
+    manager.currentContext().set(session.getId(), session, new SessionSerializationMetadata(), false);
+    assertFalse("The session couldn't be saved", manager.saveInternal(jedis, session, false));
+    assertNotNull(hashes.get(key).get("a:user"));
+    assertNull(hashes.get(key).get("placeholder"));
+  }
+
+  @Test
+  public void partialSaveWritesOnlyTheChangedAttribute() throws Exception {
+    hashes.get(key).remove("a:user");
+    session.setAttribute("count", 2);
+
+    assertFalse("The session couldn't be saved", manager.saveInternal(jedis, session, false));
+    assertTrue(session.isValid());
+    assertNotNull(hashes.get(key).get("a:count"));
+    assertNull(hashes.get(key).get("a:user"));
+  }
+
+  @Test
+  public void partialSaveDoesNotRecreateInvalidatedSession() throws Exception {
+    session.setAttribute("count", 2);
+    // Invalidated by another server before this request saves.
+    hashes.remove(key);
+
+    assertFalse("The session couldn't be saved", manager.saveInternal(jedis, session, false));
+    assertNull(hashes.get(key));
+    assertFalse(session.isValid());
+  }
+
+  @Test
+  public void fullSaveDoesNotRecreateInvalidatedSession() throws Exception {
+    hashes.remove(key);
+
+    assertFalse("The session couldn't be saved", manager.saveInternal(jedis, session, true));
+    assertNull(hashes.get(key));
+    assertFalse(session.isValid());
+  }
+
+  /**
+   * Does what RedisSessionManager.SET_HASH_IF_EXISTS_SCRIPT does.
+   */
+  private Object setHashIfExists(List<byte[]> keys, List<byte[]> args) {
+    assertEquals(1, keys.size());
+    Map<String, byte[]> hash = hashes.get(string(keys.get(0)));
+    if (hash == null) {
+      return 0L;
+    }
+    if (string(args.get(2)).equals("1")) {
+      hash.clear();
+    }
+    int last = 4 + Integer.parseInt(string(args.get(3))) * 2;
+    for (int i = 4; i < last; i += 2) {
+      hash.put(string(args.get(i)), args.get(i + 1));
+    }
+    for (int i = last; i < args.size(); i++) {
+      hash.remove(string(args.get(i)));
+    }
+    return 1L;
+  }
+
+  private static String string(byte[] bytes) {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
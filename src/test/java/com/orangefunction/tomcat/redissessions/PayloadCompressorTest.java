@@ -0,0 +1,49 @@
+package com.orangefunction.tomcat.redissessions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+
+public class PayloadCompressorTest {
+
+  @Test
+  public void dataNoLongerThanTheHeaderIsLeftAsIs() throws Exception {
+    PayloadCompressor compressor = new PayloadCompressor(1, Deflater.DEFAULT_COMPRESSION);
+    for (int length = 0; length <= PayloadCompressor.HEADER_LENGTH; length++) {
+      byte[] data = new byte[length];
+      assertSame(data, compressor.compress(data, 0));
+    }
+
+    byte[] prefixed = new byte[] { 1, 2, 3, 4, 5, 6 };
+    assertSame(prefixed, compressor.compress(prefixed, 3));
+  }
+
+  @Test
+  public void compressedDataKeepsItsPrefixAndRoundTrips() throws Exception {
+    byte[] data = new byte[100 * 1024];
+    Arrays.fill(data, (byte)'a');
+    data[0] = 42;
+    data[1] = 43;
+
+    byte[] compressed = new PayloadCompressor(16, Deflater.BEST_SPEED).compress(data, 2);
+    assertTrue(compressed.length < data.length);
+    assertTrue(PayloadCompressor.isCompressed(compressed, 2));
+    assertTrue(compressed[0] == 42 && compressed[1] == 43);
+    assertArrayEquals(data, PayloadCompressor.decompress(compressed, 2));
+  }
+
+  @Test
+  public void incompressibleDataIsLeftAsIs() throws Exception {
+    byte[] data = new byte[1024];
+    new Random(1).nextBytes(data);
+
+    assertSame(data, new PayloadCompressor(16, Deflater.BEST_SPEED).compress(data, 0));
+  }
+}
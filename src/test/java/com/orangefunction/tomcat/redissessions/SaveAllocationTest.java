@@ -0,0 +1,151 @@
+package com.orangefunction.tomcat.redissessions;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+import org.apache.catalina.core.StandardContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+
+
+/**
+ * Guards the allocations of the save path (the reused ObjectOutputStream of
+ * the JavaSerializer and the ScratchBuffer), measured with the allocated
+ * bytes of the current thread while saving a session with three attributes
+ * to a stubbed connection.
+ *
+ * What a JVM allocates differs between versions and vendors, so the saves
+ * are compared with serializing the same attributes with new streams,
+ * measured in the same run, rather than with fixed sizes. Every save
+ * serializes the attributes once (to hash them), and without the reused
+ * streams allocated several times what it does with them.
+ */
+public class SaveAllocationTest {
+
+  /**
+   * The most a save may allocate, relative to serializing the attributes
+   * with new streams; about 0.2 for an unchanged session and 0.3 for one
+   * with a changed attribute.
+   */
+  private static final double BUDGET_RATIO = 0.5;
+
+  private static final int SAVES = 20000;
+  private static final int ROUNDS = 5;
+
+  private com.sun.management.ThreadMXBean threadMXBean;
+  private RedisSessionManager manager;
+  private Jedis jedis;
+  private RedisSession session;
+
+  @Before
+  public void setUp() throws Exception {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    threadMXBean = (com.sun.management.ThreadMXBean)bean;
+    assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+    manager = new RedisSessionManager();
+    // A context lets sessions notify their (nonexistent) listeners.
+    manager.setContainer(new StandardContext());
+    manager.serializer = new JavaSerializer();
+    manager.serializer.setClassLoader(getClass().getClassLoader());
+
+    jedis = new Jedis("localhost") {
+      @Override
+      public String setex(byte[] key, int seconds, byte[] value) {
+        return "OK";
+      }
+
+      @Override
+      public Long expire(byte[] key, int seconds) {
+        return 1L;
+      }
+    };
+
+    session = new RedisSession(manager);
+    session.setValid(true);
+    session.setId("0123456789ABCDEF0123456789ABCDEF");
+    session.putLoadedAttribute("user", "someone@example.com");
+    session.putLoadedAttribute("count", 1);
+    session.putLoadedAttribute("cart", new ArrayList<>(Arrays.asList("a", "b", "c", "d")));
+
+    // Make the session the current request's session, and store it.
+    manager.findSession(null);
+    manager.currentContext().set(session.getId(), session, new SessionSerializationMetadata(), false);
+    assertFalse("The session couldn't be saved", manager.saveInternal(jedis, session, false));
+  }
+
+  @Test
+  public void unchangedSaveStaysWithinBudget() throws Exception {
+    long budget = (long)(bytesAllocatedPerSerialization() * BUDGET_RATIO);
+    assertThat(bytesAllocatedPerSave(false), lessThan(budget));
+  }
+
+  @Test
+  public void changedSaveStaysWithinBudget() throws Exception {
+    long budget = (long)(bytesAllocatedPerSerialization() * BUDGET_RATIO);
+    assertThat(bytesAllocatedPerSave(true), lessThan(budget));
+  }
+
+  /**
+   * @return the fewest bytes allocated per serialization of the session's
+   *         attributes, each with a new ObjectOutputStream
+   */
+  private long bytesAllocatedPerSerialization() throws Exception {
+    long threadId = Thread.currentThread().getId();
+    long fewest = Long.MAX_VALUE;
+    long size = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      long before = threadMXBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < SAVES; i++) {
+        for (Enumeration<String> names = session.getAttributeNames(); names.hasMoreElements();) {
+          ByteArrayOutputStream bos = new ByteArrayOutputStream();
+          try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(session.getAttribute(names.nextElement()));
+          }
+          size += bos.size();
+        }
+      }
+      long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+      fewest = Math.min(fewest, allocated / SAVES);
+    }
+    assertTrue("Nothing was serialized", size > 0);
+    return fewest;
+  }
+
+  /**
+   * @return the fewest bytes allocated per save over a few rounds, the
+   *         first ones warming up the code
+   */
+  private long bytesAllocatedPerSave(boolean changeAttribute) throws Exception {
+    long threadId = Thread.currentThread().getId();
+    long fewest = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long before = threadMXBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < SAVES; i++) {
+        if (changeAttribute) {
+          // Modified in place, so found by comparing the attribute hashes.
+          session.putLoadedAttribute("count", i);
+        }
+        manager.saveInternal(jedis, session, false);
+      }
+      long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+      fewest = Math.min(fewest, allocated / SAVES);
+    }
+    assertFalse("The session couldn't be saved", manager.saveInternal(jedis, session, false));
+    return fewest;
+  }
+}